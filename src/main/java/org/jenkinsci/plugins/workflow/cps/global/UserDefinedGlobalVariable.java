@@ -1,7 +1,12 @@
 package org.jenkinsci.plugins.workflow.cps.global;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import groovy.lang.Binding;
+import hudson.markup.MarkupFormatter;
 import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.apache.commons.io.FileUtils;
 import org.codehaus.groovy.control.MultipleCompilationErrorsException;
 import org.jenkinsci.plugins.workflow.cps.CpsCompilationErrorsException;
@@ -14,6 +19,7 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import java.io.File;
 import java.io.IOException;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 
 /**
  * Global variable backed by user-supplied script.
@@ -22,6 +28,19 @@ import jenkins.model.Jenkins;
  */
 // not @Extension because these are instantiated programmatically
 public class UserDefinedGlobalVariable extends GlobalVariable {
+    /**
+     * The maximum total length of help kept in memory, in characters of both its source and its rendered form.
+     * Pages listing global variables show the help of every variable of every library each time,
+     * and every build has its own copy of the help of the libraries it used.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static long MAX_CACHED_HELP_CHARS = SystemProperties.getLong(UserDefinedGlobalVariable.class.getName() + ".MAX_CACHED_HELP_CHARS", 4L * 1024 * 1024);
+
+    /** Rendered help by its source, least recently used first; guarded by itself. */
+    private static final Map<String, Help> helpCache = new LinkedHashMap<>(16, 0.75f, true);
+    /** Total length of the sources and rendered help in {@link #helpCache}; guarded by {@link #helpCache}. */
+    private static long helpCacheChars;
+
     private final File help;
     private final String name;
 
@@ -71,10 +90,44 @@ public class UserDefinedGlobalVariable extends GlobalVariable {
     public @CheckForNull String getHelpHtml() throws IOException {
         if (!help.exists())     return null;
 
-        return Jenkins.get().getMarkupFormatter().translate(
-            FileUtils.readFileToString(help, StandardCharsets.UTF_8).
-            // Util.escape translates \n but not \r, and we do not know what platform the library will be checked out on:
-            replace("\r\n", "\n"));
+        // Util.escape translates \n but not \r, and we do not know what platform the library will be checked out on:
+        String markup = FileUtils.readFileToString(help, StandardCharsets.UTF_8).replace("\r\n", "\n");
+        MarkupFormatter formatter = Jenkins.get().getMarkupFormatter();
+        synchronized (helpCache) {
+            Help cached = helpCache.get(markup);
+            if (cached != null && cached.formatter == formatter) {
+                return cached.html;
+            }
+        }
+        String html = formatter.translate(markup);
+        if (html != null && markup.length() + html.length() <= MAX_CACHED_HELP_CHARS) {
+            synchronized (helpCache) {
+                Help previous = helpCache.put(markup, new Help(formatter, html));
+                if (previous != null) {
+                    helpCacheChars -= markup.length() + previous.html.length();
+                }
+                helpCacheChars += markup.length() + html.length();
+                for (Iterator<Map.Entry<String, Help>> it = helpCache.entrySet().iterator(); helpCacheChars > MAX_CACHED_HELP_CHARS && it.hasNext(); ) {
+                    Map.Entry<String, Help> entry = it.next();
+                    helpCacheChars -= entry.getKey().length() + entry.getValue().html.length();
+                    it.remove();
+                }
+            }
+        }
+        return html;
+    }
+
+    /**
+     * Help rendered with a given formatter.
+     */
+    private static final class Help {
+        final MarkupFormatter formatter;
+        final String html;
+
+        Help(MarkupFormatter formatter, String html) {
+            this.formatter = formatter;
+            this.html = html;
+        }
     }
 
     @Override
@@ -24,7 +24,6 @@
 
 package org.jenkinsci.plugins.workflow.libs;
 
-import groovy.lang.GroovyShell;
 import hudson.ExtensionPoint;
 import java.net.URL;
 import java.util.List;
@@ -51,8 +50,7 @@ public abstract class ClasspathAdder implements ExtensionPoint {
         }
 
         void addTo(@NonNull CpsFlowExecution execution) {
-            GroovyShell shell = trusted ? execution.getTrustedShell() : execution.getShell();
-            shell.getClassLoader().addURL(url);
+            LibrarySourceIndex.addURL(execution, trusted, url);
         }
 
     }
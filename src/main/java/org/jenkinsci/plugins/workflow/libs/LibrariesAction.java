@@ -30,9 +30,13 @@ import hudson.model.EnvironmentContributor;
 import hudson.model.InvisibleAction;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import org.jenkinsci.plugins.workflow.cps.GlobalVariable;
+import org.jenkinsci.plugins.workflow.cps.global.UserDefinedGlobalVariable;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
@@ -44,6 +48,9 @@ public class LibrariesAction extends InvisibleAction {
 
     private final List<LibraryRecord> libraries;
 
+    /** Global variables defined by {@link #libraries}, as last computed by {@link #getVariables}. */
+    private transient volatile Variables variables;
+
     LibrariesAction(List<LibraryRecord> libraries) {
         this.libraries = libraries;
     }
@@ -56,6 +63,39 @@ public class LibrariesAction extends InvisibleAction {
         return Collections.unmodifiableList(libraries);
     }
 
+    /**
+     * Global variables defined by the libraries, for {@link LibraryAdder.GlobalVars}.
+     * Libraries only gain variables as they are retrieved, so the result is reused until their total number changes.
+     */
+    List<GlobalVariable> getVariables(Run<?,?> run) {
+        int count = 0;
+        for (LibraryRecord library : libraries) {
+            count += library.variables.size();
+        }
+        Variables v = variables;
+        if (v == null || v.count != count) {
+            List<GlobalVariable> vars = new ArrayList<>(count);
+            for (LibraryRecord library : libraries) {
+                for (String variable : library.variables) {
+                    vars.add(new UserDefinedGlobalVariable(variable, new File(run.getRootDir(), "libs/" + library.getDirectoryName() + "/vars/" + variable + ".txt")));
+                }
+            }
+            v = new Variables(count, Collections.unmodifiableList(vars));
+            variables = v;
+        }
+        return v.list;
+    }
+
+    private static final class Variables {
+        final int count;
+        final List<GlobalVariable> list;
+
+        Variables(int count, List<GlobalVariable> list) {
+            this.count = count;
+            this.list = list;
+        }
+    }
+
     @Extension public static class LibraryEnvironment extends EnvironmentContributor {
 
         @SuppressWarnings("rawtypes")
@@ -24,43 +24,83 @@
 
 package org.jenkinsci.plugins.workflow.libs;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Job;
 import hudson.model.Queue;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import jenkins.model.Jenkins;
+import jenkins.scm.api.SCMRevision;
+import jenkins.util.ContextResettingExecutorService;
+import jenkins.util.SystemProperties;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
 import org.jenkinsci.plugins.workflow.cps.GlobalVariable;
 import org.jenkinsci.plugins.workflow.cps.GlobalVariableSet;
-import org.jenkinsci.plugins.workflow.cps.global.UserDefinedGlobalVariable;
 import org.jenkinsci.plugins.workflow.cps.replay.OriginalLoadedScripts;
 import org.jenkinsci.plugins.workflow.cps.replay.ReplayAction;
 import org.jenkinsci.plugins.workflow.flow.FlowCopier;
+import org.springframework.security.core.Authentication;
 
 /**
  * Given {@link LibraryResolver}, actually adds to the Groovy classpath.
@@ -68,9 +108,52 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
 @Extension public class LibraryAdder extends ClasspathAdder {
 
     private static final Logger LOGGER = Logger.getLogger(LibraryAdder.class.getName());
+
+    /** Holds the results of {@link #retrieveShared} until every build waiting for them has copied them. */
+    static final String SHARED_RETRIEVALS_DIR = "global-libraries-retrievals";
+
+    /**
+     * Whether cached libraries should be hard-linked into build directories rather than copied.
+     * Files in a build directory are then shared with the cache, so anything modifying them must replace rather than overwrite them.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static boolean LINK_CACHED_LIBRARIES = SystemProperties.getBoolean(LibraryAdder.class.getName() + ".LINK_CACHED_LIBRARIES");
     
+    /**
+     * Whether the {@code resources} directory of each library should be packed into a single archive in the build directory,
+     * from which {@link ResourceStep} then reads, rather than kept as a tree of small files.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static boolean BUNDLE_RESOURCES = SystemProperties.getBoolean(LibraryAdder.class.getName() + ".BUNDLE_RESOURCES");
+
+    /** Name of the archive in a build's library directory holding its resources if {@link #BUNDLE_RESOURCES} is set. */
+    static final String RESOURCES_BUNDLE = "resources.zip";
+
     private static ConcurrentHashMap<String, ReentrantReadWriteLock> cacheRetrieveLock = new ConcurrentHashMap<>();
 
+    /** Serializes retrievals into a given cache directory, without blocking readers of its current contents. */
+    private static final ConcurrentHashMap<String, ReentrantLock> cachePopulateLock = new ConcurrentHashMap<>();
+
+    /** Cache directories currently being refreshed by {@link #refreshInBackground}. */
+    private static final Set<String> cacheRefreshes = ConcurrentHashMap.newKeySet();
+
+    private static final ExecutorService cacheRefreshExecutor = new ContextResettingExecutorService(
+            Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "LibraryAdder.refreshInBackground")));
+
+    /**
+     * The maximum number of libraries retrieved at the same time by a single build.
+     * Set to 1 to retrieve the libraries used by a build one after another.
+     * Changes take effect for builds loading libraries afterwards.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static int RETRIEVAL_THREADS = SystemProperties.getInteger(LibraryAdder.class.getName() + ".RETRIEVAL_THREADS", 4);
+
+    /** Libraries on the class path of each running build, by directory name; guarded by itself. */
+    private static final Map<CpsFlowExecution, Set<String>> librariesOnClasspath = new WeakHashMap<>();
+
+    /** Retrievals of uncached libraries in progress, by directory name; guarded by itself. */
+    private static final Map<String, SharedRetrieval> sharedRetrievals = new HashMap<>();
+
     static @NonNull ReentrantReadWriteLock getReadWriteLockFor(@NonNull String name) {
         return cacheRetrieveLock.computeIfAbsent(name, s -> new ReentrantReadWriteLock(true));
     }
@@ -97,13 +180,15 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
         List<Addition> additions = new ArrayList<>();
         LibrariesAction action = build.getAction(LibrariesAction.class);
         if (action != null) {
-            // Resuming a build, so just look up what we loaded before.
+            // Resuming a build, or compiling another class in a running build, so just look up what we loaded before.
             for (LibraryRecord record : action.getLibraries()) {
-                FilePath libDir = new FilePath(execution.getOwner().getRootDir()).child("libs/" + record.getDirectoryName());
-                for (String root : new String[] {"src", "vars"}) {
-                    FilePath dir = libDir.child(root);
-                    if (dir.isDirectory()) {
-                        additions.add(new Addition(dir.toURI().toURL(), record.trusted));
+                if (markOnClasspath(execution, record)) {
+                    FilePath libDir = new FilePath(execution.getOwner().getRootDir()).child("libs/" + record.getDirectoryName());
+                    for (String root : new String[] {"src", "vars"}) {
+                        FilePath dir = libDir.child(root);
+                        if (dir.isDirectory()) {
+                            additions.add(new Addition(dir.toURI().toURL(), record.trusted));
+                        }
                     }
                 }
                 String unparsed = librariesUnparsed.get(record.name);
@@ -152,15 +237,85 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
         // Record libraries we plan to load. We need LibrariesAction there first so variables can be interpolated.
         build.addAction(new LibrariesAction(new ArrayList<>(librariesAdded.values())));
         // Now actually try to retrieve the libraries.
+        if (librariesAdded.size() > 1 && RETRIEVAL_THREADS > 1) {
+            retrieveConcurrently(librariesAdded.values(), retrievers, additions, listener, build, execution);
+            return additions;
+        }
         for (LibraryRecord record : librariesAdded.values()) {
             listener.getLogger().println("Loading library " + record.getLogString());
             for (URL u : retrieve(record, retrievers.get(record.name), listener, build, execution)) {
                 additions.add(new Addition(u, record.trusted));
             }
+            markOnClasspath(execution, record);
         }
         return additions;
     }
 
+    /**
+     * Notes that a library has been added to the class path of a build in this session,
+     * so that compiling further classes does not need to look for its directories again.
+     * @return true if it had not been added before
+     */
+    private static boolean markOnClasspath(@NonNull CpsFlowExecution execution, @NonNull LibraryRecord record) {
+        synchronized (librariesOnClasspath) {
+            return librariesOnClasspath.computeIfAbsent(execution, e -> new HashSet<>()).add(record.getDirectoryName());
+        }
+    }
+
+    /**
+     * Retrieves several libraries at once, adding them in their original order.
+     * The output of each retrieval is buffered and printed once it and all libraries before it are done, so it is not interleaved.
+     * Checkouts recording a changelog are serialized by {@link SCMBasedRetriever}, so changelogs may be recorded in any order.
+     */
+    private static void retrieveConcurrently(Collection<LibraryRecord> records, Map<String, LibraryRetriever> retrievers, List<Addition> additions, TaskListener listener, Run<?,?> build, CpsFlowExecution execution) throws Exception {
+        Authentication authentication = Jenkins.getAuthentication2();
+        // Limited per build rather than with a shared pool, so builds do not wait on one another's retrievals.
+        Semaphore permits = new Semaphore(RETRIEVAL_THREADS);
+        Map<LibraryRecord, ByteArrayOutputStream> logs = new LinkedHashMap<>();
+        Map<LibraryRecord, Future<List<URL>>> futures = new HashMap<>();
+        try {
+            for (LibraryRecord record : records) {
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                logs.put(record, log);
+                futures.put(record, Computer.threadPoolForRemoting.submit(() -> {
+                    permits.acquire();
+                    try (ACLContext context = ACL.as2(authentication)) {
+                        return retrieveLogged(record, retrievers.get(record.name), new StreamTaskListener(log, StandardCharsets.UTF_8), build, execution);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            for (Map.Entry<LibraryRecord, ByteArrayOutputStream> entry : logs.entrySet()) {
+                LibraryRecord record = entry.getKey();
+                try {
+                    for (URL u : futures.get(record).get()) {
+                        additions.add(new Addition(u, record.trusted));
+                    }
+                    markOnClasspath(execution, record);
+                } catch (ExecutionException x) {
+                    Throwable cause = x.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw x;
+                } finally {
+                    entry.getValue().writeTo(listener.getLogger());
+                }
+            }
+        } finally {
+            // In case of failure, there is no need to finish retrieving the remaining libraries.
+            for (Future<List<URL>> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static List<URL> retrieveLogged(LibraryRecord record, LibraryRetriever retriever, TaskListener listener, Run<?,?> build, CpsFlowExecution execution) throws Exception {
+        listener.getLogger().println("Loading library " + record.getLogString());
+        return retrieve(record, retriever, listener, build, execution);
+    }
+
     static @NonNull String[] parse(@NonNull String identifier) {
        int at = identifier.indexOf('@');
         if (at == -1) {
@@ -172,41 +327,27 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
 
     private enum CacheStatus {
         VALID,
-        EMPTY,
         DOES_NOT_EXIST,
         EXPIRED;
     }
 
+    /**
+     * Determines the status of a cache directory from {@link LibraryCacheIndex} alone.
+     * Cache directories which have been emptied behind our back are detected by {@link #retrieve} after copying them.
+     */
     private static CacheStatus getCacheStatus(@NonNull LibraryCachingConfiguration cachingConfiguration, @NonNull final FilePath versionCacheDir)
           throws IOException, InterruptedException
     {
-        if (cachingConfiguration.isRefreshEnabled()) {
-            final long cachingMilliseconds = cachingConfiguration.getRefreshTimeMilliseconds();
-
-            if(versionCacheDir.exists()) {
-                if ((versionCacheDir.lastModified() + cachingMilliseconds) > System.currentTimeMillis()) {
-                    if (getUrlsForLibDir(versionCacheDir).isEmpty()) {
-                        return CacheStatus.EMPTY;
-                    }
-                    return CacheStatus.VALID;
-                } else {
-                    return CacheStatus.EXPIRED;
-                }
-            } else {
-                return CacheStatus.DOES_NOT_EXIST;
-            }
-        } else {
-            if (versionCacheDir.exists()) {
-                if (getUrlsForLibDir(versionCacheDir).isEmpty()) {
-                    return CacheStatus.EMPTY;
-                }
-                return CacheStatus.VALID;
-            } else {
-                return CacheStatus.DOES_NOT_EXIST;
-            }
+        LibraryCacheIndex.Entry entry = LibraryCacheIndex.get().lookup(versionCacheDir);
+        if (entry == null) {
+            return CacheStatus.DOES_NOT_EXIST;
+        }
+        if (cachingConfiguration.isRefreshEnabled() && entry.refreshed + cachingConfiguration.getRefreshTimeMilliseconds() <= System.currentTimeMillis()) {
+            return CacheStatus.EXPIRED;
         }
+        return CacheStatus.VALID;
     }
-    
+
     /** Retrieve library files. */
     static List<URL> retrieve(@NonNull LibraryRecord record, @NonNull LibraryRetriever retriever, @NonNull TaskListener listener, @NonNull Run<?,?> run, @NonNull CpsFlowExecution execution) throws Exception {
         String name = record.name;
@@ -218,7 +359,6 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
         Boolean shouldCache = cachingConfiguration != null;
         final FilePath versionCacheDir = new FilePath(LibraryCachingConfiguration.getGlobalLibrariesCacheDir(), record.getDirectoryName());
         ReentrantReadWriteLock retrieveLock = getReadWriteLockFor(record.getDirectoryName());
-        final FilePath lastReadFile = new FilePath(versionCacheDir, LibraryCachingConfiguration.LAST_READ_FILE);
 
         if(shouldCache && cachingConfiguration.isExcluded(version)) {
             listener.getLogger().println("Library " + libraryLogString + " is excluded from caching.");
@@ -228,74 +368,80 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
         //If the included versions is blank/null, cache irrespective
         //else check if that version is included and then cache only that version
 
-        if((shouldCache && cachingConfiguration.isIncluded(version)) || (shouldCache && StringUtils.isBlank(cachingConfiguration.getIncludedVersionsStr()))) {
+        boolean cached = (shouldCache && cachingConfiguration.isIncluded(version)) || (shouldCache && StringUtils.isBlank(cachingConfiguration.getIncludedVersionsStr()));
+        if (cached) {
             retrieveLock.readLock().lockInterruptibly();
             try {
-                CacheStatus cacheStatus = getCacheStatus(cachingConfiguration, versionCacheDir);
-                if (cacheStatus == CacheStatus.DOES_NOT_EXIST || cacheStatus == CacheStatus.EXPIRED || cacheStatus == CacheStatus.EMPTY) {
-                    retrieveLock.readLock().unlock();
-                    retrieveLock.writeLock().lockInterruptibly();
-                    try {
-                      boolean retrieve = false;
-                      switch (getCacheStatus(cachingConfiguration, versionCacheDir)) {
-                          case VALID:
-                              listener.getLogger().println("Library " + libraryLogString + " is cached. Copying from cache.");
-                              break;
-                          case EMPTY:
-                              listener.getLogger().println("Library " + libraryLogString + " should have been cached but is empty, re-caching.");
-                              deleteCacheDirIfExists(versionCacheDir);
-                              retrieve = true;
-                              break;
-                          case DOES_NOT_EXIST:
-                              retrieve = true;
-                              break;
-                          case EXPIRED:
-                              long cachingMinutes = cachingConfiguration.getRefreshTimeMinutes();
-                              listener.getLogger().println("Library " + libraryLogString + " is due for a refresh after " + cachingMinutes + " minutes, clearing.");
-                              deleteCacheDirIfExists(versionCacheDir);
-                              retrieve = true;
-                              break;
-                      }
-
-                        if (retrieve) {
-                            listener.getLogger().println("Caching library " + libraryLogString);
-                            versionCacheDir.mkdirs();
-                            // try to retrieve the library and delete the versionCacheDir if it fails
-                            try {
-                                retriever.retrieve(name, version, changelog, versionCacheDir, run, listener);
-                                if (getUrlsForLibDir(versionCacheDir).isEmpty()) {
-                                    // Get job name and build number from run
-                                    String jobName = run.getParent().getFullName();
-                                    String message = "Library " + libraryLogString + " is empty after retrieval in job " + jobName + ". Cleaning up cache directory.";
-                                    listener.getLogger().println(message);
-                                    // Log a warning at controller level as well
-                                    LOGGER.log(Level.WARNING, message);
-                                    deleteCacheDirIfExists(versionCacheDir);
-                                    throw new AbortException("Library " + libraryLogString + " is empty.");
-                                }
-                                listener.getLogger().println("Library " + libraryLogString + " successfully cached.");
-                            } catch (Exception e) {
-                                listener.getLogger().println("Failed to cache library " + libraryLogString + ". Error message: " + e.getMessage() + ". Cleaning up cache directory.");
-                                deleteCacheDirIfExists(versionCacheDir);
-                                throw e;
+                for (boolean retried = false; ; retried = true) {
+                    CacheStatus cacheStatus = getCacheStatus(cachingConfiguration, versionCacheDir);
+                    if (cacheStatus == CacheStatus.EXPIRED && cachingConfiguration.isStaleWhileRevalidate()) {
+                        listener.getLogger().println("Library " + libraryLogString + " is due for a refresh, copying from cache while it is refreshed in the background.");
+                        refreshInBackground(record, retriever, versionCacheDir, run);
+                    } else if (cacheStatus == CacheStatus.DOES_NOT_EXIST || cacheStatus == CacheStatus.EXPIRED) {
+                        // Readers of the current cache directory, if any, are not blocked while we retrieve the library.
+                        retrieveLock.readLock().unlock();
+                        Exception failure = null;
+                        boolean locked = false;
+                        try {
+                            refreshCache(record, retriever, changelog, versionCacheDir, run, listener);
+                            locked = true;
+                        } catch (InterruptedException x) {
+                            throw x;
+                        } catch (Exception x) {
+                            if (cacheStatus != CacheStatus.EXPIRED || !cachingConfiguration.isFallBackToCache()) {
+                                throw x;
+                            }
+                            failure = x;
+                        } finally {
+                            if (!locked) {
+                                retrieveLock.readLock().lock();
                             }
                         }
-                        retrieveLock.readLock().lock();
-                    } finally {
-                        retrieveLock.writeLock().unlock();
+                        if (failure != null) {
+                            // A failed refresh leaves the previous cache directory in place.
+                            LibraryCacheIndex.Entry entry = LibraryCacheIndex.get().lookup(versionCacheDir);
+                            if (entry == null) {
+                                throw failure;
+                            }
+                            listener.getLogger().println("WARNING: Library " + libraryLogString + " could not be refreshed. Using the copy cached at " + new Date(entry.refreshed) + " instead.");
+                            LOGGER.log(Level.WARNING, failure, () -> "Failed to refresh cached library " + libraryLogString + " in " + run + ", falling back to the expired copy");
+                            record.fromCacheFallback = true;
+                        } else if (getCacheStatus(cachingConfiguration, versionCacheDir) != CacheStatus.VALID) {
+                            // Deleted again, e.g. by Clear Cache, before we could copy it.
+                            throw new AbortException("Library " + libraryLogString + " was removed from the cache while loading it, please try again.");
+                        }
+                    } else {
+                        listener.getLogger().println("Library " + libraryLogString + " is cached. Copying from cache.");
                     }
-                } else {
-                    listener.getLogger().println("Library " + libraryLogString + " is cached. Copying from cache.");
-                }
 
-                lastReadFile.touch(System.currentTimeMillis());
-                versionCacheDir.withSuffix("-name.txt").write(name, "UTF-8");
-                versionCacheDir.copyRecursiveTo(libDir);
+                    LibraryCacheIndex.get().read(versionCacheDir);
+                    try {
+                        materialize(versionCacheDir, libDir);
+                        if (retried || !getUrlsForLibDir(libDir).isEmpty()) {
+                            break;
+                        }
+                    } catch (IOException x) {
+                        if (retried) {
+                            throw x;
+                        }
+                        LOGGER.log(Level.FINE, x, () -> "Could not copy " + versionCacheDir);
+                    }
+                    // Damaged or deleted outside of Jenkins; the index cannot tell.
+                    listener.getLogger().println("Library " + libraryLogString + " should have been cached but is empty, re-caching.");
+                    libDir.deleteRecursive();
+                    LibraryCacheIndex.get().deleted(versionCacheDir);
+                }
+                // Our read lock keeps this cache directory from being evicted.
+                LibraryCacheIndex.get().evictIfNeeded();
             } finally {
               retrieveLock.readLock().unlock();
             }
-        } else {
+        } else if (changelog) {
+            // The changelog is computed against the previous build of each job by the checkout itself,
+            // so every build recording one needs a checkout of its own.
             retriever.retrieve(name, version, changelog, libDir, run, listener);
+        } else {
+            retrieveShared(record, retriever, libDir, run, listener);
         }
         // Write the user-provided name to a file as a debugging aid.
         libDir.withSuffix("-name.txt").write(name, "UTF-8");
@@ -310,6 +456,7 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
                         String replacement = ReplayAction.replace(execution, clazz);
                         if (replacement != null) {
                             listener.getLogger().println("Replacing contents of " + rel);
+                            f.delete(); // may be a link into the cache, which must not be modified
                             f.write(replacement, null); // TODO as below, unsure of encoding used by Groovy compiler
                         }
                     }
@@ -320,16 +467,404 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
         if (urls.isEmpty()) {
             throw new AbortException("Library " + name + " expected to contain at least one of src or vars directories");
         }
+        if (!cached) {
+            LibraryVariableCatalog.retrieved(record, libDir);
+            if (BUNDLE_RESOURCES) {
+                bundleResources(libDir);
+            }
+        }
         return urls;
     }
 
-    private static void deleteCacheDirIfExists(FilePath versionCacheDir) throws IOException, InterruptedException {
-        if (versionCacheDir.exists()) {
-            versionCacheDir.deleteRecursive();
-            versionCacheDir.withSuffix("-name.txt").delete();
+    /**
+     * Packs the {@code resources} directory of a library directory into {@link #RESOURCES_BUNDLE}, then deletes it.
+     * Done once when a cache directory is populated, or for each build if the library is not cached.
+     * Symbolic links are followed, but those pointing outside the directory are left out, just as {@link #findResources} would refuse to read them.
+     */
+    private static void bundleResources(@NonNull FilePath libDir) throws IOException, InterruptedException {
+        FilePath resources = libDir.child("resources");
+        if (!resources.isDirectory()) {
+            return;
+        }
+        Path root = Paths.get(resources.getRemote());
+        Path realRoot = root.toRealPath();
+        FilePath bundle = libDir.child(RESOURCES_BUNDLE);
+        try (ZipOutputStream zip = new ZipOutputStream(bundle.write())) {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    return dir.toRealPath().startsWith(realRoot) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+                @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile() && file.toRealPath().startsWith(realRoot)) {
+                        zip.putNextEntry(new ZipEntry(root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/")));
+                        Files.copy(file, zip);
+                        zip.closeEntry();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override public FileVisitResult visitFileFailed(Path file, IOException x) throws IOException {
+                    if (x instanceof FileSystemLoopException || x instanceof NoSuchFileException) {
+                        // A link to one of its own parents, or a dangling link.
+                        return FileVisitResult.CONTINUE;
+                    }
+                    throw x;
+                }
+            });
+        }
+        resources.deleteRecursive(); // may contain links into the cache, which are only unlinked
+    }
+
+    /**
+     * A retrieval of an uncached library into a temporary directory, from which each interested build copies the result.
+     */
+    private static final class SharedRetrieval {
+        final FilePath dir;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        /** Builds which have yet to copy from {@link #dir}; guarded by {@link #sharedRetrievals}. */
+        int users;
+
+        SharedRetrieval(FilePath dir) {
+            this.dir = dir;
         }
     }
 
+    /**
+     * Retrieves a library which is not cached, sharing a single retrieval between builds which ask for the same library concurrently.
+     * If the shared retrieval fails, each waiting build falls back to retrieving the library on its own.
+     * Only used for retrievals not recording a changelog, which is not the default; see {@link LibraryConfiguration#setIncludeInChangesets}.
+     */
+    private static void retrieveShared(@NonNull LibraryRecord record, @NonNull LibraryRetriever retriever, @NonNull FilePath libDir, @NonNull Run<?,?> run, @NonNull TaskListener listener) throws Exception {
+        String key = record.getDirectoryName();
+        SharedRetrieval shared;
+        boolean leader;
+        synchronized (sharedRetrievals) {
+            shared = sharedRetrievals.get(key);
+            leader = shared == null;
+            if (leader) {
+                FilePath root = new FilePath(new File(Jenkins.get().getRootDir(), SHARED_RETRIEVALS_DIR));
+                root.mkdirs();
+                shared = new SharedRetrieval(root.createTempDir(key, ""));
+                sharedRetrievals.put(key, shared);
+            }
+            shared.users++;
+        }
+        try {
+            if (leader) {
+                boolean alone;
+                try {
+                    retriever.retrieve(record.name, record.version, false, shared.dir, run, listener);
+                    shared.done.complete(null);
+                } catch (Exception x) {
+                    shared.done.completeExceptionally(x);
+                    throw x;
+                } finally {
+                    synchronized (sharedRetrievals) {
+                        // Later requests start a fresh retrieval.
+                        sharedRetrievals.remove(key);
+                        alone = shared.users == 1;
+                    }
+                }
+                // The usual case: no other build waited, so there is nothing to copy.
+                if (alone && !libDir.exists()) {
+                    try {
+                        libDir.getParent().mkdirs();
+                        shared.dir.renameTo(libDir);
+                        return;
+                    } catch (IOException x) {
+                        FilePath dir = shared.dir;
+                        LOGGER.log(Level.FINE, x, () -> "Could not move " + dir + " to " + libDir + ", copying instead");
+                    }
+                }
+            } else {
+                listener.getLogger().println("Waiting for library " + record.getLogString() + " to be retrieved by another build.");
+                try {
+                    shared.done.get();
+                } catch (ExecutionException x) {
+                    listener.getLogger().println("Shared retrieval of library " + record.getLogString() + " failed, retrying.");
+                    retriever.retrieve(record.name, record.version, false, libDir, run, listener);
+                    return;
+                }
+            }
+            materialize(shared.dir, libDir);
+        } finally {
+            boolean last;
+            synchronized (sharedRetrievals) {
+                last = --shared.users == 0;
+            }
+            if (last) {
+                shared.dir.deleteRecursive();
+            }
+        }
+    }
+
+    /**
+     * Refreshes an expired cache directory without blocking the calling build, which continues to use the expired copy.
+     * At most one refresh per cache directory is queued at a time.
+     * No changelog is recorded, since the refresh may well outlive the build,
+     * and the refresh is skipped if the build has already completed by the time it would start,
+     * leaving it to the next build to refresh the cache directory.
+     */
+    private static void refreshInBackground(@NonNull LibraryRecord record, @NonNull LibraryRetriever retriever, @NonNull FilePath versionCacheDir, @NonNull Run<?,?> run) {
+        String key = record.getDirectoryName();
+        if (!cacheRefreshes.add(key)) {
+            return;
+        }
+        Authentication authentication = Jenkins.getAuthentication2();
+        try {
+            cacheRefreshExecutor.execute(() -> {
+                try (ACLContext context = ACL.as2(authentication)) {
+                    if (!run.isBuilding()) {
+                        // The checkout would record its SCM actions on a build which has already been saved as complete.
+                        LOGGER.fine(() -> "Not refreshing cached library " + record.getLogString() + " since " + run + " has completed");
+                        return;
+                    }
+                    refreshCache(record, retriever, false, versionCacheDir, run, new LogTaskListener(LOGGER, Level.FINE));
+                    getReadWriteLockFor(key).readLock().unlock();
+                } catch (Exception x) {
+                    LOGGER.log(Level.WARNING, x, () -> "Failed to refresh cached library " + record.getLogString() + ", will keep using the expired copy");
+                } finally {
+                    cacheRefreshes.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException x) {
+            cacheRefreshes.remove(key);
+            LOGGER.log(Level.WARNING, x, () -> "Could not schedule refresh of cached library " + record.getLogString());
+        }
+    }
+
+    /**
+     * Brings a missing, empty, or expired cache directory up to date, unless another thread already did so in the meantime.
+     * The library is retrieved into a staging directory next to the cache directory and then swapped into place,
+     * so readers of the cache directory are only locked out for the duration of a rename,
+     * and an interrupted retrieval never leaves a partially populated cache directory behind.
+     * On success, returns holding the read lock of the cache directory, which the caller must release,
+     * so that the entry cannot be evicted before it has been copied.
+     */
+    private static void refreshCache(@NonNull LibraryRecord record, @NonNull LibraryRetriever retriever, boolean changelog, @NonNull FilePath versionCacheDir, @NonNull Run<?,?> run, @NonNull TaskListener listener) throws Exception {
+        String libraryLogString = record.getLogString();
+        LibraryCachingConfiguration cachingConfiguration = record.cachingConfiguration;
+        ReentrantReadWriteLock retrieveLock = getReadWriteLockFor(record.getDirectoryName());
+        ReentrantLock populateLock = cachePopulateLock.computeIfAbsent(record.getDirectoryName(), s -> new ReentrantLock());
+        boolean readLocked = false;
+        populateLock.lockInterruptibly();
+        try {
+            switch (getCacheStatus(cachingConfiguration, versionCacheDir)) {
+                case VALID:
+                    listener.getLogger().println("Library " + libraryLogString + " is cached. Copying from cache.");
+                    retrieveLock.readLock().lockInterruptibly();
+                    readLocked = true;
+                    return;
+                case DOES_NOT_EXIST:
+                    break;
+                case EXPIRED:
+                    if (revalidate(record, retriever, versionCacheDir, run, listener)) {
+                        listener.getLogger().println("Library " + libraryLogString + " is due for a refresh but has not changed. Copying from cache.");
+                        retrieveLock.readLock().lockInterruptibly();
+                        readLocked = true;
+                        return;
+                    }
+                    long cachingMinutes = cachingConfiguration.getRefreshTimeMinutes();
+                    listener.getLogger().println("Library " + libraryLogString + " is due for a refresh after " + cachingMinutes + " minutes, refreshing.");
+                    break;
+            }
+            listener.getLogger().println("Caching library " + libraryLogString);
+            FilePath staging = versionCacheDir.withSuffix("-staging");
+            FilePath previous = versionCacheDir.withSuffix("-previous");
+            // Left over if Jenkins stopped during a previous attempt.
+            staging.deleteRecursive();
+            previous.deleteRecursive();
+            staging.mkdirs();
+            try {
+                String contentKey = retrieveIntoCache(record, retriever, changelog, staging, run, listener);
+                if (getUrlsForLibDir(staging).isEmpty()) {
+                    // Get job name and build number from run
+                    String jobName = run.getParent().getFullName();
+                    String message = "Library " + libraryLogString + " is empty after retrieval in job " + jobName + ". Cleaning up cache directory.";
+                    listener.getLogger().println(message);
+                    // Log a warning at controller level as well
+                    LOGGER.log(Level.WARNING, message);
+                    throw new AbortException("Library " + libraryLogString + " is empty.");
+                }
+                if (BUNDLE_RESOURCES) {
+                    bundleResources(staging);
+                }
+                staging.child(LibraryCachingConfiguration.LAST_READ_FILE).touch(System.currentTimeMillis());
+                retrieveLock.writeLock().lockInterruptibly();
+                try {
+                    if (versionCacheDir.exists()) {
+                        versionCacheDir.renameTo(previous);
+                    }
+                    staging.renameTo(versionCacheDir);
+                    versionCacheDir.withSuffix("-name.txt").write(record.name, "UTF-8");
+                    writeContentKey(versionCacheDir, contentKey);
+                    // Downgrade, so the new entry cannot be evicted before the caller has copied it.
+                    retrieveLock.readLock().lock();
+                    readLocked = true;
+                } finally {
+                    retrieveLock.writeLock().unlock();
+                }
+                LibraryCacheIndex.get().populated(versionCacheDir, record.name, contentKey);
+                LibraryVariableCatalog.update(record, versionCacheDir);
+                listener.getLogger().println("Library " + libraryLogString + " successfully cached.");
+            } catch (Exception e) {
+                listener.getLogger().println("Failed to cache library " + libraryLogString + ". Error message: " + e.getMessage() + ".");
+                throw e;
+            } finally {
+                staging.deleteRecursive();
+                previous.deleteRecursive();
+            }
+        } catch (Throwable t) {
+            if (readLocked) {
+                retrieveLock.readLock().unlock();
+            }
+            throw t;
+        } finally {
+            populateLock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the version of an expired cache directory still resolves to the sources it was populated from,
+     * in which case it is marked as fresh without being retrieved again.
+     * Only the cheap {@link SCMSourceRetriever#fetch} is performed.
+     * @return true if the cache directory is up to date
+     */
+    private static boolean revalidate(@NonNull LibraryRecord record, @NonNull LibraryRetriever retriever, @NonNull FilePath versionCacheDir, @NonNull Run<?,?> run, @NonNull TaskListener listener) throws Exception {
+        LibraryCacheIndex.Entry entry = LibraryCacheIndex.get().lookup(versionCacheDir);
+        if (!(retriever instanceof SCMSourceRetriever) || entry == null || entry.contentKey == null) {
+            return false;
+        }
+        SCMSourceRetriever scmSourceRetriever = (SCMSourceRetriever) retriever;
+        String contentKey = scmSourceRetriever.contentKey(scmSourceRetriever.fetch(record.name, record.version, run, listener));
+        if (!entry.contentKey.equals(contentKey)) {
+            return false;
+        }
+        LibraryCacheIndex.get().refreshed(versionCacheDir);
+        return true;
+    }
+
+    /**
+     * Records the key returned by {@link #retrieveIntoCache} next to the cache directory, in case {@link LibraryCacheIndex} needs to be rebuilt.
+     */
+    private static void writeContentKey(@NonNull FilePath versionCacheDir, @CheckForNull String contentKey) throws IOException, InterruptedException {
+        FilePath contentFile = versionCacheDir.withSuffix("-content.txt");
+        if (contentKey != null) {
+            contentFile.write(contentKey, "UTF-8");
+        } else {
+            contentFile.delete();
+        }
+    }
+
+    /**
+     * Retrieves a library into its cache directory.
+     * Where the retriever can identify the sources it would produce, the tree is shared through
+     * {@link LibraryCachingConfiguration#getContentStoreDir}, so every configuration resolving to the same revision
+     * reuses a single checkout and a single copy on disk.
+     * Retrievals recording a changelog always check out into the cache directory, since reusing a tree would record none.
+     * @return the {@link SCMSourceRetriever#contentKey} of the retrieved sources, if known
+     */
+    private static @CheckForNull String retrieveIntoCache(@NonNull LibraryRecord record, @NonNull LibraryRetriever retriever, boolean changelog, @NonNull FilePath versionCacheDir, @NonNull Run<?,?> run, @NonNull TaskListener listener) throws Exception {
+        if (!(retriever instanceof SCMSourceRetriever)) {
+            retriever.retrieve(record.name, record.version, changelog, versionCacheDir, run, listener);
+            return null;
+        }
+        SCMSourceRetriever scmSourceRetriever = (SCMSourceRetriever) retriever;
+        SCMRevision revision = scmSourceRetriever.fetch(record.name, record.version, run, listener);
+        String contentKey = scmSourceRetriever.contentKey(revision);
+        if (contentKey == null || changelog) {
+            scmSourceRetriever.retrieve(record.name, revision, changelog, versionCacheDir, run, listener);
+            return contentKey;
+        }
+        FilePath contentDir = LibraryCachingConfiguration.getContentStoreDir().child(contentKey);
+        FilePath revisionFile = contentDir.withSuffix("-revision.txt");
+        ReentrantReadWriteLock contentLock = getReadWriteLockFor(contentKey);
+        contentLock.writeLock().lockInterruptibly();
+        try {
+            boolean retrieved = !revisionFile.exists();
+            if (!retrieved) {
+                listener.getLogger().println("Library " + record.getLogString() + " at revision " + revision + " was already retrieved for another configuration.");
+            } else {
+                // Anything left over without a revision file was not completely retrieved.
+                contentDir.deleteRecursive();
+                contentDir.mkdirs();
+                try {
+                    scmSourceRetriever.retrieve(record.name, revision, changelog, contentDir, run, listener);
+                } catch (Exception e) {
+                    contentDir.deleteRecursive();
+                    throw e;
+                }
+                if (getUrlsForLibDir(contentDir).isEmpty()) {
+                    // Do not share empty trees; the caller reports the problem.
+                    contentDir.deleteRecursive();
+                    return null;
+                }
+                revisionFile.write(revision.toString(), "UTF-8");
+            }
+            if (retrieved) {
+                LibraryCacheIndex.get().populatedContent(contentDir, revision.toString());
+            } else {
+                LibraryCacheIndex.get().read(contentDir);
+            }
+            linkOrCopy(contentDir, versionCacheDir);
+        } finally {
+            contentLock.writeLock().unlock();
+        }
+        return contentKey;
+    }
+
+    /**
+     * Populates a build's library directory from the cache.
+     * Uses hard links if {@link #LINK_CACHED_LIBRARIES} is set, falling back to a copy if the file system does not support them.
+     */
+    static void materialize(@NonNull FilePath versionCacheDir, @NonNull FilePath libDir) throws IOException, InterruptedException {
+        if (LINK_CACHED_LIBRARIES) {
+            linkOrCopy(versionCacheDir, libDir);
+        } else {
+            versionCacheDir.copyRecursiveTo(libDir);
+        }
+    }
+
+    /**
+     * Hard-links a tree of files into a new location, or copies it if the file system does not support links.
+     */
+    private static void linkOrCopy(@NonNull FilePath from, @NonNull FilePath to) throws IOException, InterruptedException {
+        if (!from.isRemote() && !to.isRemote()) {
+            try {
+                linkRecursive(Paths.get(from.getRemote()), Paths.get(to.getRemote()));
+                return;
+            } catch (IOException | UnsupportedOperationException x) {
+                LOGGER.log(Level.FINE, x, () -> "Could not link " + from + " to " + to + ", copying instead");
+                // Some files may already be linked, and copying over them would modify the original.
+                to.deleteRecursive();
+            }
+        }
+        from.copyRecursiveTo(to);
+    }
+
+    private static void linkRecursive(Path from, Path to) throws IOException {
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.createLink(to.resolve(from.relativize(file)), file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Deletes a cache directory along with the files recording its metadata.
+     * The caller should hold the write lock from {@link #getReadWriteLockFor}.
+     */
+    static void deleteCacheDir(@NonNull FilePath versionCacheDir) throws IOException, InterruptedException {
+        versionCacheDir.deleteRecursive();
+        versionCacheDir.withSuffix("-name.txt").delete();
+        versionCacheDir.withSuffix("-content.txt").delete();
+        LibraryCacheIndex.get().deleted(versionCacheDir);
+    }
+
     private static List<URL> getUrlsForLibDir(FilePath libDir) throws MalformedURLException, IOException, InterruptedException {
         return getUrlsForLibDir(libDir, null);
     }
@@ -367,12 +902,30 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
             if (action != null) {
                 FilePath libs = new FilePath(run.getRootDir()).child("libs");
                 for (LibraryRecord library : action.getLibraries()) {
+                    FilePath bundle = libs.child(library.getDirectoryName() + "/" + RESOURCES_BUNDLE);
+                    if (bundle.exists()) {
+                        Path entry = Paths.get("resources").resolve(name).normalize();
+                        if (!entry.startsWith("resources") || entry.getNameCount() < 2) {
+                            throw new AbortException(name + " references a file that is not contained within the library: " + library.name);
+                        }
+                        try (ZipFile zip = new ZipFile(bundle.getRemote())) {
+                            ZipEntry e = zip.getEntry(entry.subpath(1, entry.getNameCount()).toString().replace(entry.getFileSystem().getSeparator(), "/"));
+                            if (e != null && !e.isDirectory()) {
+                                try (InputStream in = zip.getInputStream(e)) {
+                                    resources.put(library.name, readResource(in, encoding));
+                                }
+                            }
+                        }
+                        continue;
+                    }
                     FilePath libResources = libs.child(library.getDirectoryName() + "/resources/");
                     FilePath f = libResources.child(name);
                     if (!new File(f.getRemote()).getCanonicalFile().toPath().startsWith(new File(libResources.getRemote()).getCanonicalPath())) {
                         throw new AbortException(name + " references a file that is not contained within the library: " + library.name);
                     } else if (f.exists()) {
-                        resources.put(library.name, readResource(f, encoding));
+                        try (InputStream in = f.read()) {
+                            resources.put(library.name, readResource(in, encoding));
+                        }
                     }
                 }
             }
@@ -380,13 +933,11 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
         return resources;
     }
 
-    private static String readResource(FilePath file, @CheckForNull String encoding) throws IOException, InterruptedException {
-        try (InputStream in = file.read()) {
-            if ("Base64".equals(encoding)) {
-                return Base64.getEncoder().encodeToString(IOUtils.toByteArray(in));
-            } else {
-                return IOUtils.toString(in, encoding); // The platform default is used if encoding is null.
-            }
+    private static String readResource(InputStream in, @CheckForNull String encoding) throws IOException {
+        if ("Base64".equals(encoding)) {
+            return Base64.getEncoder().encodeToString(IOUtils.toByteArray(in));
+        } else {
+            return IOUtils.toString(in, encoding); // The platform default is used if encoding is null.
         }
     }
 
@@ -400,17 +951,43 @@ import org.jenkinsci.plugins.workflow.flow.FlowCopier;
             if (action == null) {
                 return Collections.emptySet();
             }
+            return action.getVariables(run);
+        }
+
+        /**
+         * Offers the variables of libraries loaded implicitly by a job, as of their latest retrieval by any build.
+         * Libraries which must be requested with {@code @Library} are not included, since a build may not use them.
+         */
+        @Override public Collection<GlobalVariable> forJob(Job<?,?> job) {
+            if (job == null) {
+                return Collections.emptySet();
+            }
             List<GlobalVariable> vars = new ArrayList<>();
-            for (LibraryRecord library : action.getLibraries()) {
-                for (String variable : library.variables) {
-                    vars.add(new UserDefinedGlobalVariable(variable, new File(run.getRootDir(), "libs/" + library.getDirectoryName() + "/vars/" + variable + ".txt")));
+            Set<String> names = new HashSet<>();
+            for (LibraryResolver kind : ExtensionList.lookup(LibraryResolver.class)) {
+                for (LibraryConfiguration cfg : kind.forJob(job, Collections.emptyMap())) {
+                    if (!cfg.isImplicit() || !names.add(cfg.getName())) {
+                        continue;
+                    }
+                    String version;
+                    try {
+                        version = cfg.defaultedVersion(null);
+                    } catch (AbortException x) {
+                        continue;
+                    }
+                    String source = kind.getClass().getName();
+                    if (cfg instanceof LibraryResolver.ResolvedLibraryConfiguration) {
+                        source = ((LibraryResolver.ResolvedLibraryConfiguration) cfg).getSource();
+                    }
+                    LibraryRetriever retriever = cfg.getRetriever();
+                    String libraryPath = retriever instanceof SCMBasedRetriever ? ((SCMBasedRetriever) retriever).getLibraryPath() : null;
+                    LibraryRecord record = new LibraryRecord(cfg.getName(), version, kind.isTrusted(), false, null, source, libraryPath);
+                    vars.addAll(LibraryVariableCatalog.variablesFor(record.getDirectoryName()));
                 }
             }
             return vars;
         }
 
-        // TODO implement forJob by checking each LibraryConfiguration and scanning SCMFileSystem when implemented (JENKINS-33273)
-
     }
 
     @Extension public static class LoadedLibraries extends OriginalLoadedScripts {
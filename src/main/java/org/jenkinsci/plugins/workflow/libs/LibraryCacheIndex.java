@@ -0,0 +1,427 @@
+package org.jenkinsci.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+import hudson.util.XStream2;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Keeps track of the directories in the global library cache: which library each one holds, which sources it was populated from,
+ * when it was last populated and read, and how much space it takes up.
+ * Cache hits are served from this index without touching the disk.
+ * The index is saved to {@value #INDEX_FILE} in the cache root from time to time and when Jenkins stops,
+ * and rebuilt by walking the cache if that file is missing, in which case read times are reset to populate times.
+ * It is also used to keep the cache within {@link LibraryCachingCleanup#MAX_CACHE_SIZE_MB} and {@link LibraryCachingCleanup#MIN_FREE_DISK_SPACE_MB}
+ * by evicting the least recently read directories.
+ * Files linked into several directories are counted once for each of them.
+ */
+@Restricted(NoExternalUse.class)
+@Extension public final class LibraryCacheIndex extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(LibraryCacheIndex.class.getName());
+
+    static final String INDEX_FILE = "index.xml";
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("library-cache-index", State.class);
+        XSTREAM.alias("entry", Entry.class);
+    }
+
+    /** A cache directory, or a tree in {@link LibraryCachingConfiguration#getContentStoreDir}. */
+    static final class Entry {
+        /** The library name, for cache directories. */
+        @CheckForNull String name;
+        /** The {@link SCMSourceRetriever#contentKey} a cache directory was populated from, if known. */
+        @CheckForNull String contentKey;
+        /** The revision held by a content store tree. */
+        @CheckForNull String revision;
+        long size;
+        /** When the directory was last populated or found to be up to date; this is what expires. */
+        long refreshed;
+        long lastRead;
+    }
+
+    /** Persistent form of the index. */
+    private static final class State {
+        Map<String, Entry> entries;
+    }
+
+    /** Entries by path relative to the cache root; guarded by {@code this}. */
+    private final Map<String, Entry> entries = new HashMap<>();
+    /** Keys of {@link #entries} for cache directories, by library name; guarded by {@code this}. */
+    private final Map<String, Set<String>> entriesByName = new HashMap<>();
+    private long totalSize;
+    /** The cache root the index was loaded from, which only changes in tests. */
+    private String loadedRoot;
+    private boolean dirty;
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * How long after being populated or found to be up to date a directory is safe from eviction for lack of free disk space.
+     * Otherwise, if the disk is filled by something other than the cache, every retrieval would evict every entry.
+     */
+    private static final long RECENTLY_REFRESHED_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    static @NonNull LibraryCacheIndex get() {
+        return ExtensionList.lookupSingleton(LibraryCacheIndex.class);
+    }
+
+    /**
+     * Looks up a cache directory or content store tree.
+     * @return a copy of its entry, or null if it is not in the cache
+     */
+    synchronized @CheckForNull Entry lookup(@NonNull FilePath dir) throws IOException, InterruptedException {
+        load();
+        Entry entry = entries.get(keyFor(dir));
+        if (entry == null) {
+            return null;
+        }
+        Entry copy = new Entry();
+        copy.name = entry.name;
+        copy.contentKey = entry.contentKey;
+        copy.revision = entry.revision;
+        copy.size = entry.size;
+        copy.refreshed = entry.refreshed;
+        copy.lastRead = entry.lastRead;
+        return copy;
+    }
+
+    /** Finds the cache directories holding any version of libraries with a given name. */
+    synchronized @NonNull List<FilePath> forName(@NonNull String name) throws IOException, InterruptedException {
+        load();
+        FilePath root = LibraryCachingConfiguration.getGlobalLibrariesCacheDir();
+        List<FilePath> dirs = new ArrayList<>();
+        for (String key : entriesByName.getOrDefault(name, Collections.emptySet())) {
+            dirs.add(root.child(key));
+        }
+        return dirs;
+    }
+
+    /** Records that a cache directory has been populated. */
+    void populated(@NonNull FilePath dir, @NonNull String name, @CheckForNull String contentKey) throws IOException, InterruptedException {
+        Entry entry = new Entry();
+        entry.name = name;
+        entry.contentKey = contentKey;
+        put(dir, entry);
+    }
+
+    /** Records that a content store tree has been populated. */
+    void populatedContent(@NonNull FilePath dir, @NonNull String revision) throws IOException, InterruptedException {
+        Entry entry = new Entry();
+        entry.revision = revision;
+        put(dir, entry);
+    }
+
+    private void put(FilePath dir, Entry entry) throws IOException, InterruptedException {
+        entry.size = sizeOf(dir);
+        entry.refreshed = entry.lastRead = System.currentTimeMillis();
+        synchronized (this) {
+            load();
+            put(keyFor(dir), entry);
+            dirty = true;
+        }
+    }
+
+    /** Records that a cache directory or content store tree has been read. */
+    synchronized void read(@NonNull FilePath dir) throws IOException, InterruptedException {
+        load();
+        Entry entry = entries.get(keyFor(dir));
+        if (entry != null) {
+            entry.lastRead = System.currentTimeMillis();
+            dirty = true;
+        }
+    }
+
+    /** Records that an expired cache directory has been found to be up to date. */
+    synchronized void refreshed(@NonNull FilePath dir) throws IOException, InterruptedException {
+        load();
+        Entry entry = entries.get(keyFor(dir));
+        if (entry != null) {
+            entry.refreshed = System.currentTimeMillis();
+            dirty = true;
+        }
+    }
+
+    /** Records that a cache directory or content store tree has been deleted, or was found to be damaged. */
+    synchronized void deleted(@NonNull FilePath dir) {
+        String key = keyFor(dir);
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            totalSize -= entry.size;
+            unindexName(key, entry);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Discards the index and rebuilds it from the cache directory,
+     * for use after the cache has been modified by something other than this plugin.
+     */
+    synchronized void reload() throws IOException, InterruptedException {
+        loadedRoot = null;
+        LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(INDEX_FILE).delete();
+        load();
+    }
+
+    /**
+     * Deletes the least recently read directories until the cache is back within its bounds, if there are any.
+     * Directories which are currently in use are skipped, as are recently refreshed directories
+     * if only the free disk space is too low, since the cache may not be what is using it up.
+     */
+    void evictIfNeeded() throws IOException, InterruptedException {
+        if (LibraryCachingCleanup.MAX_CACHE_SIZE_MB <= 0 && LibraryCachingCleanup.MIN_FREE_DISK_SPACE_MB <= 0) {
+            return;
+        }
+        if (!overSize() && !lowOnDiskSpace() || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Set<String> skipped = new HashSet<>();
+            while (true) {
+                boolean overSize = overSize();
+                if (!overSize && !lowOnDiskSpace()) {
+                    return;
+                }
+                long recent = System.currentTimeMillis() - RECENTLY_REFRESHED_MILLIS;
+                String victim = null;
+                synchronized (this) {
+                    long oldest = Long.MAX_VALUE;
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        if (!overSize && entry.getValue().refreshed > recent) {
+                            continue;
+                        }
+                        if (entry.getValue().lastRead < oldest && !skipped.contains(entry.getKey())) {
+                            oldest = entry.getValue().lastRead;
+                            victim = entry.getKey();
+                        }
+                    }
+                }
+                if (victim == null) {
+                    LOGGER.fine("Library cache is over its bounds, but every remaining directory is in use or was refreshed recently");
+                    return;
+                }
+                if (!evict(LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(victim))) {
+                    skipped.add(victim);
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private boolean overSize() throws IOException, InterruptedException {
+        long maxSize = LibraryCachingCleanup.MAX_CACHE_SIZE_MB * 1024 * 1024;
+        if (maxSize > 0) {
+            synchronized (this) {
+                load();
+                return totalSize > maxSize;
+            }
+        }
+        return false;
+    }
+
+    private boolean lowOnDiskSpace() throws IOException, InterruptedException {
+        long minFree = LibraryCachingCleanup.MIN_FREE_DISK_SPACE_MB * 1024 * 1024;
+        if (minFree > 0) {
+            synchronized (this) {
+                load();
+                if (entries.isEmpty()) {
+                    return false;
+                }
+            }
+            File root = new File(LibraryCachingConfiguration.getGlobalLibrariesCacheDir().getRemote());
+            return root.isDirectory() && root.getUsableSpace() < minFree;
+        }
+        return false;
+    }
+
+    private boolean evict(FilePath dir) throws IOException, InterruptedException {
+        ReentrantReadWriteLock retrieveLock = LibraryAdder.getReadWriteLockFor(dir.getName());
+        if (!retrieveLock.writeLock().tryLock()) {
+            return false;
+        }
+        try {
+            LOGGER.fine(() -> "Evicting " + dir + " from the library cache");
+            if (isContentStoreTree(dir)) {
+                dir.deleteRecursive();
+                dir.withSuffix("-revision.txt").delete();
+                deleted(dir);
+            } else {
+                LibraryAdder.deleteCacheDir(dir);
+            }
+            return true;
+        } finally {
+            retrieveLock.writeLock().unlock();
+        }
+    }
+
+    @Override public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override protected void doRun() throws Exception {
+        save();
+    }
+
+    @Terminator public static void saveOnShutdown() throws IOException {
+        get().save();
+    }
+
+    /** Writes the index to the cache root if it has changed since it was last written. */
+    synchronized void save() throws IOException {
+        if (!dirty || loadedRoot == null) {
+            return;
+        }
+        State state = new State();
+        state.entries = new HashMap<>(entries);
+        new XmlFile(XSTREAM, new File(loadedRoot, INDEX_FILE)).write(state);
+        dirty = false;
+    }
+
+    private static boolean isContentStoreTree(FilePath dir) {
+        FilePath parent = dir.getParent();
+        return parent != null && parent.getName().equals(LibraryCachingConfiguration.CONTENT_STORE_DIR);
+    }
+
+    private static String keyFor(FilePath dir) {
+        return isContentStoreTree(dir) ? LibraryCachingConfiguration.CONTENT_STORE_DIR + '/' + dir.getName() : dir.getName();
+    }
+
+    private void put(String key, Entry entry) {
+        assert Thread.holdsLock(this);
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            totalSize -= old.size;
+            unindexName(key, old);
+        }
+        totalSize += entry.size;
+        if (entry.name != null) {
+            entriesByName.computeIfAbsent(entry.name, n -> new HashSet<>()).add(key);
+        }
+    }
+
+    private void unindexName(String key, Entry entry) {
+        if (entry.name != null) {
+            Set<String> keys = entriesByName.get(entry.name);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    entriesByName.remove(entry.name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the saved index, or walks the cache if there is none.
+     * Reads are only recorded in the index, so a rebuilt index takes them from the files written when each directory was populated:
+     * read times go back to populate times, making recently read directories look older to eviction and cleanup than they are.
+     */
+    private void load() throws IOException, InterruptedException {
+        assert Thread.holdsLock(this);
+        FilePath root = LibraryCachingConfiguration.getGlobalLibrariesCacheDir();
+        if (root.getRemote().equals(loadedRoot)) {
+            return;
+        }
+        loadedRoot = root.getRemote();
+        entries.clear();
+        entriesByName.clear();
+        totalSize = 0;
+        dirty = false;
+        XmlFile file = new XmlFile(XSTREAM, new File(root.getRemote(), INDEX_FILE));
+        if (file.exists()) {
+            try {
+                State state = (State) file.read();
+                if (state.entries != null) {
+                    state.entries.forEach(this::put);
+                }
+                return;
+            } catch (IOException | RuntimeException x) {
+                LOGGER.log(Level.WARNING, x, () -> "Could not read " + file + ", rebuilding the library cache index");
+                entries.clear();
+                entriesByName.clear();
+                totalSize = 0;
+            }
+        }
+        if (!root.isDirectory()) {
+            return;
+        }
+        for (FilePath dir : root.listDirectories()) {
+            if (dir.getName().equals(LibraryCachingConfiguration.CONTENT_STORE_DIR)) {
+                for (FilePath content : dir.listDirectories()) {
+                    FilePath revisionFile = content.withSuffix("-revision.txt");
+                    if (revisionFile.exists()) {
+                        Entry entry = new Entry();
+                        entry.revision = revisionFile.readToString();
+                        entry.size = sizeOf(content);
+                        entry.refreshed = entry.lastRead = revisionFile.lastModified();
+                        put(keyFor(content), entry);
+                    }
+                }
+            } else {
+                FilePath lastReadFile = dir.child(LibraryCachingConfiguration.LAST_READ_FILE);
+                FilePath nameFile = dir.withSuffix("-name.txt");
+                if (lastReadFile.exists() && nameFile.exists()) {
+                    Entry entry = new Entry();
+                    entry.name = nameFile.readToString();
+                    FilePath contentFile = dir.withSuffix("-content.txt");
+                    entry.contentKey = contentFile.exists() ? contentFile.readToString() : null;
+                    entry.size = sizeOf(dir);
+                    entry.refreshed = dir.lastModified();
+                    entry.lastRead = lastReadFile.lastModified();
+                    put(keyFor(dir), entry);
+                }
+            }
+        }
+        dirty = true;
+        LOGGER.fine(() -> "Library cache holds " + entries.size() + " directories using " + totalSize + " bytes");
+    }
+
+    private static long sizeOf(FilePath dir) throws IOException {
+        Path path = new File(dir.getRemote()).toPath();
+        if (!Files.isDirectory(path)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException x) {
+                    throw new UncheckedIOException(x);
+                }
+            }).sum();
+        } catch (UncheckedIOException x) {
+            LOGGER.log(Level.FINE, x, () -> "Could not determine the size of " + dir);
+            return 0;
+        }
+    }
+
+}
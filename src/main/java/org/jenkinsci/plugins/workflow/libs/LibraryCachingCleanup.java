@@ -6,10 +6,13 @@ import hudson.FilePath;
 import hudson.model.AsyncPeriodicWork;
 import hudson.model.TaskListener;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import jenkins.model.Jenkins;
 import jenkins.util.SystemProperties;
 
 @Extension public class LibraryCachingCleanup extends AsyncPeriodicWork {
@@ -17,6 +20,22 @@ import jenkins.util.SystemProperties;
     public static int EXPIRE_AFTER_READ_DAYS =
             SystemProperties.getInteger(LibraryCachingCleanup.class.getName() + ".EXPIRE_AFTER_READ_DAYS", 7);
 
+    /**
+     * Maximum total size of the global library cache in megabytes, or 0 for no limit.
+     * Once it is exceeded, the least recently read cache directories are deleted.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for script console access")
+    public static long MAX_CACHE_SIZE_MB =
+            SystemProperties.getLong(LibraryCachingCleanup.class.getName() + ".MAX_CACHE_SIZE_MB", 0L);
+
+    /**
+     * Minimum free space in megabytes to leave on the file system holding the global library cache, or 0 to not check.
+     * Once there is less, the least recently read cache directories are deleted, except for any refreshed in the last few minutes.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for script console access")
+    public static long MIN_FREE_DISK_SPACE_MB =
+            SystemProperties.getLong(LibraryCachingCleanup.class.getName() + ".MIN_FREE_DISK_SPACE_MB", 0L);
+
     public LibraryCachingCleanup() {
         super("LibraryCachingCleanup");
     }
@@ -28,7 +47,9 @@ import jenkins.util.SystemProperties;
     @Override protected void execute(TaskListener listener) throws IOException, InterruptedException {
         FilePath globalCacheDir = LibraryCachingConfiguration.getGlobalLibrariesCacheDir();
         for (FilePath library : globalCacheDir.list()) {
-            if (!removeIfExpiredCacheDirectory(library)) {
+            if (library.getName().equals(LibraryCachingConfiguration.CONTENT_STORE_DIR)) {
+                removeExpiredContent(library);
+            } else if (!removeIfExpiredCacheDirectory(library)) {
                 // Prior to the SECURITY-2586 fix, library caches had a two-level directory structure.
                 // These caches will never be used again, so we delete any that we find.
                 for (FilePath version: library.list()) {
@@ -39,6 +60,92 @@ import jenkins.util.SystemProperties;
                 }
             }
         }
+        removeAbandonedRetrievals(new FilePath(new File(Jenkins.get().getRootDir(), LibraryAdder.SHARED_RETRIEVALS_DIR)));
+        removeExpiredMirrors(new FilePath(new File(Jenkins.get().getRootDir(), SCMBasedRetriever.MIRRORS_DIR)));
+        removeUnusedCatalogEntries(new FilePath(new File(Jenkins.get().getRootDir(), LibraryVariableCatalog.CATALOG_DIR)), globalCacheDir);
+    }
+
+    /**
+     * Delete the variables recorded by {@link LibraryVariableCatalog} for libraries which have not been used recently.
+     * Entries of cached libraries are kept as long as their cache directory; others are marked as used when retrieved.
+     */
+    private void removeUnusedCatalogEntries(FilePath catalogDir, FilePath globalCacheDir) throws IOException, InterruptedException {
+        if (!catalogDir.isDirectory()) {
+            return;
+        }
+        for (FilePath entry : catalogDir.listDirectories()) {
+            if (globalCacheDir.child(entry.getName()).isDirectory()) {
+                continue;
+            }
+            FilePath variablesFile = entry.child(LibraryVariableCatalog.VARIABLES_FILE);
+            long lastUsed = variablesFile.exists() ? variablesFile.lastModified() : entry.lastModified();
+            if (System.currentTimeMillis() - lastUsed > TimeUnit.DAYS.toMillis(EXPIRE_AFTER_READ_DAYS)) {
+                LibraryVariableCatalog.forget(entry.getName());
+                entry.deleteRecursive();
+            }
+        }
+    }
+
+    /**
+     * Delete checkouts kept for {@link SCMBasedRetriever#MIRROR_CLONES} which have not been used recently.
+     * Each retrieval rewrites the {@code -scm-key.txt} file next to the checkout it uses.
+     */
+    private void removeExpiredMirrors(FilePath mirrorsDir) throws IOException, InterruptedException {
+        if (!mirrorsDir.isDirectory()) {
+            return;
+        }
+        for (FilePath mirror : mirrorsDir.listDirectories()) {
+            ReentrantLock lock = SCMBasedRetriever.getMirrorLock(mirror.getName());
+            if (!lock.tryLock()) {
+                continue; // in use
+            }
+            try {
+                FilePath keyFile = mirror.withSuffix("-scm-key.txt");
+                long lastUsed = keyFile.exists() ? keyFile.lastModified() : mirror.lastModified();
+                if (System.currentTimeMillis() - lastUsed > TimeUnit.DAYS.toMillis(EXPIRE_AFTER_READ_DAYS)) {
+                    mirror.deleteRecursive();
+                    keyFile.delete();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Delete temporary directories left behind by retrievals which were shared between builds when Jenkins stopped.
+     */
+    private void removeAbandonedRetrievals(FilePath sharedRetrievalsDir) throws IOException, InterruptedException {
+        if (!sharedRetrievalsDir.isDirectory()) {
+            return;
+        }
+        for (FilePath retrieval : sharedRetrievalsDir.listDirectories()) {
+            if (System.currentTimeMillis() - retrieval.lastModified() > TimeUnit.DAYS.toMillis(1)) {
+                retrieval.deleteRecursive();
+            }
+        }
+    }
+
+    /**
+     * Delete shared library trees which have not been used to populate a cache directory recently.
+     * Cache directories populated from them hold their own links or copies, so are unaffected.
+     */
+    private void removeExpiredContent(FilePath contentStoreDir) throws IOException, InterruptedException {
+        for (FilePath content : contentStoreDir.listDirectories()) {
+            final FilePath revisionFile = content.withSuffix("-revision.txt");
+            ReentrantReadWriteLock retrieveLock = LibraryAdder.getReadWriteLockFor(content.getName());
+            retrieveLock.writeLock().lockInterruptibly();
+            try {
+                // Trees without a revision file are incomplete, and since we hold the lock, nobody is still working on them.
+                if (!revisionFile.exists() || System.currentTimeMillis() - lastRead(content, revisionFile) > TimeUnit.DAYS.toMillis(EXPIRE_AFTER_READ_DAYS)) {
+                    content.deleteRecursive();
+                    revisionFile.delete();
+                    LibraryCacheIndex.get().deleted(content);
+                }
+            } finally {
+                retrieveLock.writeLock().unlock();
+            }
+        }
     }
 
     /**
@@ -52,10 +159,8 @@ import jenkins.util.SystemProperties;
             ReentrantReadWriteLock retrieveLock = LibraryAdder.getReadWriteLockFor(library.getName());
             retrieveLock.writeLock().lockInterruptibly();
             try {
-                if (System.currentTimeMillis() - lastReadFile.lastModified() > TimeUnit.DAYS.toMillis(EXPIRE_AFTER_READ_DAYS)) {
-                
-                    library.deleteRecursive();
-                    library.withSuffix("-name.txt").delete();
+                if (System.currentTimeMillis() - lastRead(library, lastReadFile) > TimeUnit.DAYS.toMillis(EXPIRE_AFTER_READ_DAYS)) {
+                    LibraryAdder.deleteCacheDir(library);
                 }
             } finally {
                 retrieveLock.writeLock().unlock();
@@ -64,4 +169,12 @@ import jenkins.util.SystemProperties;
         }
         return false;
     }
+
+    /**
+     * Reads are tracked by {@link LibraryCacheIndex}; the file is only consulted for directories it does not know about.
+     */
+    private static long lastRead(FilePath dir, FilePath file) throws IOException, InterruptedException {
+        LibraryCacheIndex.Entry entry = LibraryCacheIndex.get().lookup(dir);
+        return entry != null ? entry.lastRead : file.lastModified();
+    }
 }
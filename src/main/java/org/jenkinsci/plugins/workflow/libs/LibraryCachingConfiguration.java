@@ -15,8 +15,6 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -25,7 +23,6 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 
 public final class LibraryCachingConfiguration extends AbstractDescribableImpl<LibraryCachingConfiguration> {
@@ -35,10 +32,13 @@ public final class LibraryCachingConfiguration extends AbstractDescribableImpl<L
     private int refreshTimeMinutes;
     private String excludedVersionsStr;
     private String includedVersionsStr;
+    private boolean staleWhileRevalidate;
+    private boolean fallBackToCache;
 
     private static final String VERSIONS_SEPARATOR = " ";
     private static final String GLOBAL_LIBRARIES_DIR = "global-libraries-cache";
     public static final String LAST_READ_FILE = "last_read";
+    static final String CONTENT_STORE_DIR = "content-store";
 
     @DataBoundConstructor public LibraryCachingConfiguration(int refreshTimeMinutes, String excludedVersionsStr) {
         this.refreshTimeMinutes = refreshTimeMinutes;
@@ -83,6 +83,31 @@ public final class LibraryCachingConfiguration extends AbstractDescribableImpl<L
         this.includedVersionsStr = includedVersionsStr;
     }
 
+    /**
+     * Whether expired cache entries should continue to be used while they are refreshed in the background.
+     */
+    public boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    @DataBoundSetter
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Whether builds should use the last cached copy of the library if it cannot be refreshed.
+     * @see LibraryRecord#isFromCacheFallback
+     */
+    public boolean isFallBackToCache() {
+        return fallBackToCache;
+    }
+
+    @DataBoundSetter
+    public void setFallBackToCache(boolean fallBackToCache) {
+        this.fallBackToCache = fallBackToCache;
+    }
+
     private List<String> getExcludedVersions() {
         if (excludedVersionsStr == null) {
             return Collections.emptyList();
@@ -131,7 +156,7 @@ public final class LibraryCachingConfiguration extends AbstractDescribableImpl<L
 
     @Override public String toString() {
         return "LibraryCachingConfiguration{refreshTimeMinutes=" + refreshTimeMinutes + ", excludedVersions="
-                + excludedVersionsStr + '}';
+                + excludedVersionsStr + ", staleWhileRevalidate=" + staleWhileRevalidate + ", fallBackToCache=" + fallBackToCache + '}';
     }
 
     public static FilePath getGlobalLibrariesCacheDir() {
@@ -140,39 +165,36 @@ public final class LibraryCachingConfiguration extends AbstractDescribableImpl<L
         return new FilePath(cacheRootDir);
     }
 
+    /**
+     * Holds library trees shared by cache entries which resolved to the same sources.
+     * Each tree is stored under a key from {@link SCMSourceRetriever#contentKey}, next to a {@code -revision.txt} file
+     * which is written once the tree is complete.
+     * When cache entries are populated from a tree is tracked by {@link LibraryCacheIndex}, not on disk.
+     */
+    static FilePath getContentStoreDir() {
+        return getGlobalLibrariesCacheDir().child(CONTENT_STORE_DIR);
+    }
+
     @Extension public static class DescriptorImpl extends Descriptor<LibraryCachingConfiguration> {
         public FormValidation doClearCache(@QueryParameter String name, @QueryParameter boolean forceDelete) throws InterruptedException {
             Jenkins.get().checkPermission(Jenkins.ADMINISTER);
 
             try {
-                if (LibraryCachingConfiguration.getGlobalLibrariesCacheDir().exists()) {
-                    for (FilePath libraryNamePath : LibraryCachingConfiguration.getGlobalLibrariesCacheDir().list("*-name.txt")) {
-                        // Libraries configured in distinct locations may have the same name. Since only admins are allowed here, this is not a huge issue, but it is probably unexpected.
-                        String cacheName;
-                        try (InputStream stream = libraryNamePath.read()) {
-                            cacheName = IOUtils.toString(stream, StandardCharsets.UTF_8);
-                        }
-                        if (cacheName.equals(name)) {
-                            FilePath libraryCachePath = LibraryCachingConfiguration.getGlobalLibrariesCacheDir()
-                                    .child(libraryNamePath.getName().replace("-name.txt", ""));
-                            if (forceDelete) {
-                                LOGGER.log(Level.FINER, "Force deleting cache for {0}", name);
-                                libraryCachePath.deleteRecursive();
-                                libraryNamePath.delete();
-                            } else {
-                                LOGGER.log(Level.FINER, "Safe deleting cache for {0}", name);
-                                ReentrantReadWriteLock retrieveLock = LibraryAdder.getReadWriteLockFor(libraryCachePath.getName());
-                                if (retrieveLock.writeLock().tryLock(10, TimeUnit.SECONDS)) {
-                                    try {
-                                        libraryCachePath.deleteRecursive();
-                                        libraryNamePath.delete();
-                                    } finally {
-                                        retrieveLock.writeLock().unlock();
-                                    }
-                                } else {
-                                    return FormValidation.error("The cache dir could not be deleted because it is currently being used by another thread. Please try again.");
-                                }
-                            }
+                // Libraries configured in distinct locations may have the same name. Since only admins are allowed here, this is not a huge issue, but it is probably unexpected.
+                for (FilePath libraryCachePath : LibraryCacheIndex.get().forName(name)) {
+                    LibraryCacheIndex.Entry entry = LibraryCacheIndex.get().lookup(libraryCachePath);
+                    if (!deleteLocked(libraryCachePath.getName(), forceDelete, () -> LibraryAdder.deleteCacheDir(libraryCachePath))) {
+                        return FormValidation.error("The cache dir could not be deleted because it is currently being used by another thread. Please try again.");
+                    }
+                    if (entry != null && entry.contentKey != null) {
+                        // Otherwise the next retrieval would repopulate the cache dir from the stored tree without contacting the SCM.
+                        FilePath content = getContentStoreDir().child(entry.contentKey);
+                        if (!deleteLocked(entry.contentKey, forceDelete, () -> {
+                            content.deleteRecursive();
+                            content.withSuffix("-revision.txt").delete();
+                            LibraryCacheIndex.get().deleted(content);
+                        })) {
+                            return FormValidation.error("The cache dir could not be deleted because it is currently being used by another thread. Please try again.");
                         }
                     }
                 }
@@ -181,5 +203,32 @@ public final class LibraryCachingConfiguration extends AbstractDescribableImpl<L
             }
             return FormValidation.ok("The cache dir was deleted successfully.");
         }
+
+        /**
+         * Runs a deletion holding the write lock of {@link LibraryAdder#getReadWriteLockFor} the given name, unless forced.
+         * @return false if the lock could not be acquired in time
+         */
+        private static boolean deleteLocked(String lockName, boolean forceDelete, Deletion deletion) throws IOException, InterruptedException {
+            if (forceDelete) {
+                LOGGER.log(Level.FINER, "Force deleting cache for {0}", lockName);
+                deletion.delete();
+                return true;
+            }
+            LOGGER.log(Level.FINER, "Safe deleting cache for {0}", lockName);
+            ReentrantReadWriteLock retrieveLock = LibraryAdder.getReadWriteLockFor(lockName);
+            if (!retrieveLock.writeLock().tryLock(10, TimeUnit.SECONDS)) {
+                return false;
+            }
+            try {
+                deletion.delete();
+            } finally {
+                retrieveLock.writeLock().unlock();
+            }
+            return true;
+        }
+
+        private interface Deletion {
+            void delete() throws IOException, InterruptedException;
+        }
     }
 }
\ No newline at end of file
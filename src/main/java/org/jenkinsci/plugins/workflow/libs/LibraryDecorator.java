@@ -31,8 +31,11 @@ import hudson.Functions;
 import hudson.model.TaskListener;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.codehaus.groovy.ast.AnnotatedNode;
@@ -59,6 +62,12 @@ import org.jenkinsci.plugins.workflow.cps.GroovyShellDecorator;
  */
 @Extension public class LibraryDecorator extends GroovyShellDecorator {
 
+    /**
+     * Builds whose implicit libraries have already been added by every {@link ClasspathAdder} in this session; guarded by itself.
+     * Classes compiled later which do not ask for any library of their own need not consult the adders again.
+     */
+    private static final Set<CpsFlowExecution> adderConsulted = Collections.newSetFromMap(new WeakHashMap<>());
+
     @Override public void customizeImports(CpsFlowExecution execution, ImportCustomizer ic) {
         ic.addImports(Library.class.getName());
     }
@@ -120,6 +129,13 @@ import org.jenkinsci.plugins.workflow.cps.GroovyShellDecorator;
                         }
                     }
                 }.visitClass(classNode);
+                if (libraries.isEmpty()) {
+                    synchronized (adderConsulted) {
+                        if (adderConsulted.contains(execution)) {
+                            return;
+                        }
+                    }
+                }
                 try {
                     for (ClasspathAdder adder : ExtensionList.lookup(ClasspathAdder.class)) {
                         for (ClasspathAdder.Addition addition : adder.add(execution, libraries, changelogs)) {
@@ -129,6 +145,9 @@ import org.jenkinsci.plugins.workflow.cps.GroovyShellDecorator;
                     if (!libraries.isEmpty()) {
                         throw new AbortException(Messages.LibraryDecorator_could_not_find_any_definition_of_librari(libraries));
                     }
+                    synchronized (adderConsulted) {
+                        adderConsulted.add(execution);
+                    }
                 } catch (Exception x) {
                     // Merely throwing CompilationFailedException does not cause compilation to…fail. Gotta love Groovy!
                     source.getErrorCollector().addErrorAndContinue(Message.create("Loading libraries failed", source));
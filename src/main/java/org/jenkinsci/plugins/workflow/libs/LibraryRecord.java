@@ -54,6 +54,7 @@ public final class LibraryRecord {
     final String libraryPath;
     private String logString;
     private String directoryName;
+    boolean fromCacheFallback;
 
     /**
      * @param name The name of the library, as entered by the user. Not validated or restricted in any way.
@@ -132,6 +133,15 @@ public final class LibraryRecord {
         return changelog;
     }
 
+    /**
+     * Whether retrieval of the library failed and an expired cached copy was used instead.
+     * @see LibraryCachingConfiguration#isFallBackToCache
+     */
+    @Exported
+    public boolean isFromCacheFallback() {
+        return fromCacheFallback;
+    }
+
     @Override public String toString() {
         String cachingConfigurationStr = cachingConfiguration != null ? cachingConfiguration.toString() : "null";
         return "LibraryRecord{name=" + name + ", version=" + version + ", variables=" + variables + ", trusted=" + trusted + ", changelog=" + changelog + ", cachingConfiguration=" + cachingConfigurationStr + ", directoryName=" + directoryName + '}';
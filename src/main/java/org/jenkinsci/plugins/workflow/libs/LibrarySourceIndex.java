@@ -0,0 +1,168 @@
+package org.jenkinsci.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyResourceLoader;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Answers the Groovy compiler's lookups of sources for candidate class names from an index of the library directories on the class path.
+ * The compiler looks up several candidate names for every unqualified identifier, and each lookup would otherwise
+ * probe every library directory for a file, even though their contents do not change once they have been added.
+ */
+@Restricted(NoExternalUse.class)
+public final class LibrarySourceIndex implements GroovyResourceLoader {
+
+    private static final Logger LOGGER = Logger.getLogger(LibrarySourceIndex.class.getName());
+
+    /** Set to false to look up Groovy sources in library directories on disk every time. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static boolean ENABLED = SystemProperties.getBoolean(LibrarySourceIndex.class.getName() + ".ENABLED", true);
+
+    private final GroovyClassLoader loader;
+    private final GroovyResourceLoader delegate;
+    /** Relative paths of the sources in each directory added to {@link #loader}; guarded by {@code this}. */
+    private final List<Set<String>> roots = new ArrayList<>();
+    /** How many distinct URLs have been added to {@link #loader} through {@link #addURL}; guarded by {@code this}. */
+    private int added;
+    /** Whether some URL could not be indexed; guarded by {@code this}. */
+    private boolean incomplete;
+    /** Class names known to have no source; guarded by {@code this}. */
+    private final Set<String> missing = new HashSet<>();
+
+    private LibrarySourceIndex(GroovyClassLoader loader) {
+        this.loader = loader;
+        this.delegate = loader.getResourceLoader();
+    }
+
+    /** Adds a library directory to the trusted or untrusted class loader of a build. */
+    static void addURL(@NonNull CpsFlowExecution execution, boolean trusted, @NonNull URL url) {
+        GroovyClassLoader trustedLoader = execution.getTrustedShell().getClassLoader();
+        GroovyClassLoader untrustedLoader = execution.getShell().getClassLoader();
+        // The untrusted class loader delegates to the trusted one, so both may now find more than before.
+        addURL(trusted ? trustedLoader : untrustedLoader, url, trustedLoader, untrustedLoader);
+    }
+
+    /**
+     * Adds a directory to a class loader.
+     * @param affected class loaders which may find more sources once {@code url} has been added
+     */
+    static void addURL(@NonNull GroovyClassLoader loader, @NonNull URL url, @NonNull GroovyClassLoader... affected) {
+        if (!ENABLED) {
+            loader.addURL(url);
+            return;
+        }
+        LibrarySourceIndex index;
+        synchronized (loader) {
+            GroovyResourceLoader resourceLoader = loader.getResourceLoader();
+            if (resourceLoader instanceof LibrarySourceIndex) {
+                index = (LibrarySourceIndex) resourceLoader;
+            } else {
+                index = new LibrarySourceIndex(loader);
+                loader.setResourceLoader(index);
+            }
+        }
+        synchronized (index) {
+            // Class loaders ignore URLs they already have, for instance when a build resumes.
+            if (Arrays.asList(loader.getURLs()).contains(url)) {
+                return;
+            }
+        }
+        Set<String> sources = scan(url);
+        synchronized (index) {
+            if (Arrays.asList(loader.getURLs()).contains(url)) {
+                return;
+            }
+            loader.addURL(url);
+            index.added++;
+            if (sources != null) {
+                index.roots.add(sources);
+            } else {
+                index.incomplete = true;
+            }
+        }
+        for (GroovyClassLoader l : affected) {
+            if (l.getResourceLoader() instanceof LibrarySourceIndex) {
+                LibrarySourceIndex i = (LibrarySourceIndex) l.getResourceLoader();
+                synchronized (i) {
+                    i.missing.clear();
+                }
+            }
+        }
+    }
+
+    /** Lists the Groovy sources in a local directory, or returns null if the URL is anything else. */
+    private static @CheckForNull Set<String> scan(URL url) {
+        if (!url.getProtocol().equals("file")) {
+            return null;
+        }
+        Path root;
+        try {
+            root = Paths.get(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException x) {
+            return null;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(".groovy") && Files.isRegularFile(f))
+                    .map(f -> root.relativize(f).toString().replace(f.getFileSystem().getSeparator(), "/"))
+                    .collect(Collectors.toSet());
+        } catch (IOException | RuntimeException x) {
+            LOGGER.log(Level.FINE, x, () -> "Could not index " + url);
+            return null;
+        }
+    }
+
+    @Override public URL loadGroovySource(String className) throws MalformedURLException {
+        String path = className.replace('.', '/') + ".groovy";
+        boolean known;
+        boolean ownMiss;
+        int seen;
+        synchronized (this) {
+            // Nothing we remember holds if something else has added URLs behind our back.
+            seen = added;
+            known = seen == loader.getURLs().length;
+            if (known && missing.contains(className)) {
+                return null;
+            }
+            ownMiss = known && !incomplete && roots.stream().noneMatch(r -> r.contains(path));
+        }
+        URL url;
+        if (ownMiss) {
+            // None of our own directories has it, so only the parent could.
+            ClassLoader parent = loader.getParent();
+            url = parent != null ? parent.getResource(path) : null;
+        } else {
+            url = delegate.loadGroovySource(className);
+        }
+        if (url == null && known) {
+            synchronized (this) {
+                if (added == seen) { // otherwise a library was added while we looked
+                    missing.add(className);
+                }
+            }
+        }
+        return url;
+    }
+
+}
@@ -42,6 +42,8 @@ import hudson.security.AccessControlled;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URI;
@@ -52,9 +54,12 @@ import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
@@ -64,6 +69,8 @@ import jenkins.model.Jenkins;
 import jenkins.scm.impl.SingleSCMSource;
 import org.codehaus.groovy.control.MultipleCompilationErrorsException;
 import org.codehaus.groovy.runtime.InvokerHelper;
+import org.codehaus.groovy.runtime.typehandling.DefaultTypeTransformation;
+import org.codehaus.groovy.syntax.Types;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.AbstractWhitelist;
 import org.jenkinsci.plugins.workflow.cps.CpsCompilationErrorsException;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
@@ -241,9 +248,8 @@ public class LibraryStep extends Step {
             }
             listener.getLogger().println("Loading library " + record.name + "@" + record.version);
             CpsFlowExecution exec = (CpsFlowExecution) getContext().get(FlowExecution.class);
-            GroovyClassLoader loader = (trusted ? exec.getTrustedShell() : exec.getShell()).getClassLoader();
-            for (URL u : LibraryAdder.retrieve(record, retriever, listener, run, (CpsFlowExecution) getContext().get(FlowExecution.class))) {
-                loader.addURL(u);
+            for (URL u : LibraryAdder.retrieve(record, retriever, listener, run, exec)) {
+                LibrarySourceIndex.addURL(exec, trusted, u);
             }
             run.save(); // persist changes to LibrariesAction.libraries*.variables
             return new LoadedClasses(name, record.getDirectoryName(), trusted, changelog, run);
@@ -268,6 +274,15 @@ public class LibraryStep extends Step {
         private final @CheckForNull String clazz;
         /** {@code file:/…/libs/NAME/src/} */
         private final @NonNull String srcUrl;
+        /** {@link #srcUrl} canonicalized, once some class has been verified to be inside it. */
+        private transient @CheckForNull String srcUrlCanonical;
+        /** Handles for nested classes or package components already looked up from this one, by property name. */
+        private transient @CheckForNull Map<String, LoadedClasses> children;
+        /** Static fields of {@link #clazz} already looked up, by name. */
+        private transient @CheckForNull Map<String, Field> fields;
+
+        /** Classes which passed the checks in {@link #loadClass}, by class loader and then by {@link #srcUrl} and class name; guarded by itself. */
+        private static final Map<ClassLoader, Map<String, WeakReference<Class<?>>>> verifiedClasses = new WeakHashMap<>();
 
         LoadedClasses(String library, String libraryDirectoryName, boolean trusted, Boolean changelog, Run<?,?> run) {
             this(library, trusted, changelog, "", null, /* cf. LibraryAdder.retrieve */ new File(run.getRootDir(), "libs/" + libraryDirectoryName + "/src").toURI().toString());
@@ -283,13 +298,18 @@ public class LibraryStep extends Step {
         }
 
         @Override public Object getProperty(String property) {
+            // Only added once the property is known not to be a field, so this need not be checked first.
+            LoadedClasses child = children != null ? children.get(property) : null;
+            if (child != null) {
+                return child;
+            }
             if (clazz != null) {
                 // Field access?
                 try {
                     if (isSandboxed()) {
                         return Checker.checkedGetAttribute(loadClass(prefix + clazz), false, false, property);
                     }
-                    return loadClass(prefix + clazz).getField(property).get(null);
+                    return field(property).get(null);
                 } catch (MissingPropertyException | NoSuchFieldException x) {
                     // guessed wrong
                 } catch (SecurityException x) {
@@ -303,15 +323,57 @@ public class LibraryStep extends Step {
                 String fullClazz = clazz != null ? clazz + '$' + property : property;
                 loadClass(prefix + fullClazz);
                 // OK, class really exists, stash it and await methods
-                return new LoadedClasses(library, trusted, changelog, prefix, fullClazz, srcUrl);
+                return child(property, prefix, fullClazz);
             } else if (clazz != null) {
                 throw new MissingPropertyException(property, loadClass(prefix + clazz));
             } else {
                 // Still selecting package components.
-                return new LoadedClasses(library, trusted, changelog, prefix + property + '.', null, srcUrl);
+                return child(property, prefix + property + '.', null);
+            }
+        }
+
+        private LoadedClasses child(String property, String prefix, String clazz) {
+            LoadedClasses child = new LoadedClasses(library, trusted, changelog, prefix, clazz, srcUrl);
+            child.srcUrlCanonical = srcUrlCanonical;
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            children.put(property, child);
+            return child;
+        }
+
+        @Override public void setProperty(String property, Object newValue) {
+            if (clazz == null) {
+                throw new MissingPropertyException(property, LoadedClasses.class);
+            }
+            try {
+                if (isSandboxed()) {
+                    Checker.checkedSetAttribute(loadClass(prefix + clazz), property, false, false, Types.ASSIGN, newValue);
+                    return;
+                }
+                Field f = field(property);
+                f.set(null, DefaultTypeTransformation.castToType(newValue, f.getType()));
+            } catch (NoSuchFieldException x) {
+                throw new MissingPropertyException(property, loadClass(prefix + clazz));
+            } catch (MissingPropertyException | SecurityException x) {
+                throw x;
+            } catch (Throwable x) {
+                throw new GroovyRuntimeException(x);
             }
         }
 
+        private Field field(String property) throws NoSuchFieldException {
+            Field f = fields != null ? fields.get(property) : null;
+            if (f == null) {
+                f = loadClass(prefix + clazz).getField(property);
+                if (fields == null) {
+                    fields = new HashMap<>();
+                }
+                fields.put(property, f);
+            }
+            return f;
+        }
+
         @Override public Object invokeMethod(String name, Object _args) {
             Class<?> c = loadClass(prefix + clazz);
             Object[] args = _args instanceof Object[] ? (Object[]) _args : new Object[] {_args}; // TODO why does Groovy not just pass an Object[] to begin with?!
@@ -352,11 +414,18 @@ public class LibraryStep extends Step {
             return !GroovyInterceptor.getApplicableInterceptors().isEmpty();
         }
 
-        // TODO putProperty for static field set
-
         private Class<?> loadClass(String name) {
             CpsFlowExecution exec = CpsThread.current().getExecution();
             GroovyClassLoader loader = (trusted ? exec.getTrustedShell() : exec.getShell()).getClassLoader();
+            String key = srcUrl + '!' + name;
+            synchronized (verifiedClasses) {
+                Map<String, WeakReference<Class<?>>> verified = verifiedClasses.get(loader);
+                WeakReference<Class<?>> ref = verified != null ? verified.get(key) : null;
+                Class<?> c = ref != null ? ref.get() : null;
+                if (c != null) {
+                    return c;
+                }
+            }
             try {
                 Class<?> c = loader.loadClass(name);
                 ClassLoader definingLoader = c.getClassLoader();
@@ -372,13 +441,18 @@ public class LibraryStep extends Step {
                     throw new IllegalAccessException(name + " had no defined code source");
                 }
                 String actual = canonicalize(codeSource.getLocation().toString());
-                String srcUrlC = canonicalize(srcUrl); // do not do this in constructor: path might not actually exist
+                String srcUrlC = srcUrlCanonical != null ? srcUrlCanonical : canonicalize(srcUrl); // do not do this in constructor: path might not actually exist
                 if (!actual.startsWith(srcUrlC)) {
                     throw new IllegalAccessException(name + " was defined in " + actual + " which was not inside " + srcUrlC);
                 }
                 if (!Modifier.isPublic(c.getModifiers())) { // unlikely since Groovy makes classes implicitly public
                     throw new IllegalAccessException(c + " is not public");
                 }
+                LOGGER.fine(() -> "Verified that " + name + " is inside " + srcUrlC);
+                srcUrlCanonical = srcUrlC;
+                synchronized (verifiedClasses) {
+                    verifiedClasses.computeIfAbsent(loader, k -> new HashMap<>()).put(key, new WeakReference<>(c));
+                }
                 return c;
             } catch (MultipleCompilationErrorsException x) {
                 throw new CpsCompilationErrorsException(x);
@@ -403,7 +477,7 @@ public class LibraryStep extends Step {
     @Extension public static class LoadedClassesWhitelist extends AbstractWhitelist { // TODO JENKINS-24982 @Whitelisted does not suffice
         @Override public boolean permitsMethod(Method method, Object receiver, Object[] args) {
             String name = method.getName();
-            return receiver instanceof LoadedClasses && method.getDeclaringClass() == GroovyObject.class && (name.equals("getProperty") || name.equals("invokeMethod"));
+            return receiver instanceof LoadedClasses && method.getDeclaringClass() == GroovyObject.class && (name.equals("getProperty") || name.equals("setProperty") || name.equals("invokeMethod"));
         }
     }
 
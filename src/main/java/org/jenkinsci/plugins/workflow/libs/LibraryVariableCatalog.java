@@ -0,0 +1,171 @@
+package org.jenkinsci.plugins.workflow.libs;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.cps.GlobalVariable;
+import org.jenkinsci.plugins.workflow.cps.global.UserDefinedGlobalVariable;
+
+/**
+ * Records the global variables defined by each library, as of its latest retrieval, so that they can be offered for jobs which have not run yet.
+ * For each {@link LibraryRecord#getDirectoryName}, {@value #CATALOG_DIR} holds a list of variable names and a copy of their help files.
+ * Lists are read once and then kept in memory.
+ * Cached libraries are recorded when their cache directory is populated; others only when their variables change.
+ * Entries no longer in use are deleted by {@link LibraryCachingCleanup}.
+ */
+final class LibraryVariableCatalog {
+
+    private static final Logger LOGGER = Logger.getLogger(LibraryVariableCatalog.class.getName());
+
+    static final String CATALOG_DIR = "global-libraries-catalog";
+
+    static final String VARIABLES_FILE = "variables.txt";
+
+    /** How often {@link #retrieved} marks an entry as still in use. */
+    private static final long MARK_USED_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+    /** Variable names by library directory name, empty if none are known; guarded by itself. */
+    private static final Map<String, List<String>> variables = new HashMap<>();
+
+    private LibraryVariableCatalog() {}
+
+    private static File dirFor(String directoryName) {
+        return new File(new File(Jenkins.get().getRootDir(), CATALOG_DIR), directoryName);
+    }
+
+    /**
+     * Records the variables of a library, such as a cache directory which has just been populated.
+     * Files are only written if they have changed since the last update.
+     */
+    static void update(@NonNull LibraryRecord record, @NonNull FilePath libDir) {
+        String directoryName = record.getDirectoryName();
+        List<String> names = new ArrayList<>();
+        try {
+            FilePath varsDir = libDir.child("vars");
+            if (varsDir.isDirectory()) {
+                Set<String> sorted = new TreeSet<>();
+                for (FilePath var : varsDir.list("*.groovy")) {
+                    sorted.add(var.getBaseName());
+                }
+                names.addAll(sorted);
+            }
+            File dir = dirFor(directoryName);
+            File help = new File(dir, "help");
+            Set<String> stale = new HashSet<>();
+            String[] existing = help.list();
+            if (existing != null) {
+                Collections.addAll(stale, existing);
+            }
+            for (String name : names) {
+                FilePath txt = libDir.child("vars/" + name + ".txt");
+                if (txt.exists()) {
+                    stale.remove(name + ".txt");
+                    writeIfChanged(new File(help, name + ".txt"), txt.readToString());
+                }
+            }
+            for (String name : stale) {
+                Files.deleteIfExists(new File(help, name).toPath());
+            }
+            writeIfChanged(new File(dir, VARIABLES_FILE), String.join("\n", names));
+        } catch (IOException | InterruptedException x) {
+            LOGGER.log(Level.WARNING, "Could not record variables of " + record.getLogString(), x);
+        }
+        synchronized (variables) {
+            variables.put(directoryName, Collections.unmodifiableList(names));
+        }
+    }
+
+    /**
+     * Notes that a library which is not cached has been retrieved into a build, after {@link LibraryRecord#variables} has been filled in.
+     * The help files are only read again if the variables differ from those recorded.
+     */
+    static void retrieved(@NonNull LibraryRecord record, @NonNull FilePath libDir) {
+        String directoryName = record.getDirectoryName();
+        if (!namesFor(directoryName).equals(new ArrayList<>(record.variables))) {
+            update(record, libDir);
+            return;
+        }
+        File variablesFile = new File(dirFor(directoryName), VARIABLES_FILE);
+        long now = System.currentTimeMillis();
+        long lastModified = variablesFile.lastModified();
+        if (lastModified != 0 && now - lastModified > MARK_USED_INTERVAL && !variablesFile.setLastModified(now)) {
+            LOGGER.fine(() -> "Could not mark " + variablesFile + " as used");
+        }
+    }
+
+    /**
+     * Drops the variables of a library from memory, before its entry is deleted.
+     */
+    static void forget(@NonNull String directoryName) {
+        synchronized (variables) {
+            variables.remove(directoryName);
+        }
+    }
+
+    private static void writeIfChanged(File f, String content) throws IOException {
+        try {
+            if (new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).equals(content)) {
+                return;
+            }
+        } catch (NoSuchFileException x) {
+            Files.createDirectories(f.toPath().getParent());
+        }
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Looks up the variables a library had when it was last retrieved.
+     */
+    static @NonNull List<GlobalVariable> variablesFor(@NonNull String directoryName) {
+        List<String> names = namesFor(directoryName);
+        File help = new File(dirFor(directoryName), "help");
+        List<GlobalVariable> vars = new ArrayList<>(names.size());
+        for (String name : names) {
+            vars.add(new UserDefinedGlobalVariable(name, new File(help, name + ".txt")));
+        }
+        return vars;
+    }
+
+    private static @NonNull List<String> namesFor(@NonNull String directoryName) {
+        List<String> names;
+        synchronized (variables) {
+            names = variables.get(directoryName);
+        }
+        if (names == null) {
+            names = new ArrayList<>();
+            try {
+                for (String name : Files.readAllLines(new File(dirFor(directoryName), VARIABLES_FILE).toPath(), StandardCharsets.UTF_8)) {
+                    if (!name.isEmpty()) {
+                        names.add(name);
+                    }
+                }
+            } catch (NoSuchFileException x) {
+                // never retrieved
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "Could not read variables of " + directoryName, x);
+            }
+            names = Collections.unmodifiableList(names);
+            synchronized (variables) {
+                variables.putIfAbsent(directoryName, names);
+            }
+        }
+        return names;
+    }
+
+}
@@ -45,16 +45,27 @@ import hudson.slaves.WorkspaceList;
 import hudson.util.FormValidation;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import jenkins.model.Jenkins;
+import jenkins.scm.api.SCMFile;
+import jenkins.scm.api.SCMFileSystem;
+import jenkins.scm.api.SCMRevision;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.plugins.workflow.steps.scm.GenericSCMStep;
 import org.jenkinsci.plugins.workflow.steps.scm.SCMStep;
 import org.kohsuke.accmod.Restricted;
@@ -73,6 +84,45 @@ public abstract class SCMBasedRetriever extends LibraryRetriever {
     @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
     public static boolean INCLUDE_SRC_TEST_IN_LIBRARIES = Boolean.getBoolean(SCMSourceRetriever.class.getName() + ".INCLUDE_SRC_TEST_IN_LIBRARIES");
 
+    /**
+     * Whether clone mode should update a checkout of each SCM kept on the controller, and copy the library from there,
+     * rather than cloning afresh for every retrieval.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static boolean MIRROR_CLONES = SystemProperties.getBoolean(SCMBasedRetriever.class.getName() + ".MIRROR_CLONES");
+
+    /** How long to wait before retrying a failed SCM operation the first time; later retries wait twice as long as the previous one, plus or minus jitter. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static long RETRY_INITIAL_DELAY_SECONDS = SystemProperties.getLong(SCMBasedRetriever.class.getName() + ".RETRY_INITIAL_DELAY_SECONDS", 10L);
+
+    /** The longest wait between retries of a failed SCM operation. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static long RETRY_MAX_DELAY_SECONDS = SystemProperties.getLong(SCMBasedRetriever.class.getName() + ".RETRY_MAX_DELAY_SECONDS", 120L);
+
+    /** How long after the first attempt a failed SCM operation may still be retried, or 0 for no limit beyond the SCM checkout retry count. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static long RETRY_DEADLINE_SECONDS = SystemProperties.getLong(SCMBasedRetriever.class.getName() + ".RETRY_DEADLINE_SECONDS", 0L);
+
+    /** After how many consecutive failed operations on an SCM further operations on it fail immediately, or 0 to always try. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static int CIRCUIT_BREAKER_FAILURES = SystemProperties.getInteger(SCMBasedRetriever.class.getName() + ".CIRCUIT_BREAKER_FAILURES", 0);
+
+    /** How long operations on an SCM fail immediately after {@link #CIRCUIT_BREAKER_FAILURES} is reached, before one is tried again. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Non-final for write access via the Script Console")
+    public static long CIRCUIT_BREAKER_OPEN_SECONDS = SystemProperties.getLong(SCMBasedRetriever.class.getName() + ".CIRCUIT_BREAKER_OPEN_SECONDS", 300L);
+
+    /** By {@link SCM#getKey} or similar; see {@link #retrySCMOperation(String, TaskListener, Callable)}. */
+    static final ConcurrentHashMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    /** Holds the checkouts used if {@link #MIRROR_CLONES} is set, by {@link LibraryRecord#directoryNameFor} of the SCM key. */
+    static final String MIRRORS_DIR = "global-libraries-mirrors";
+
+    /** Serializes use of each directory in {@link #MIRRORS_DIR}. */
+    private static final ConcurrentHashMap<String, ReentrantLock> mirrorLocks = new ConcurrentHashMap<>();
+
+    /** Serializes checkouts recording a changelog into each build; guarded by itself. */
+    private static final Map<Run<?, ?>, ReentrantLock> changelogLocks = new WeakHashMap<>();
+
     /**
      * Matches ".." in positions where it would be treated as the parent directory.
      *
@@ -82,6 +132,8 @@ public abstract class SCMBasedRetriever extends LibraryRetriever {
 
     private boolean clone;
 
+    private boolean lightweight;
+
     /**
      * The path to the library inside of the SCM.
      *
@@ -100,6 +152,14 @@ public abstract class SCMBasedRetriever extends LibraryRetriever {
         this.clone = clone;
     }
 
+    public boolean isLightweight() {
+        return lightweight;
+    }
+
+    @DataBoundSetter public void setLightweight(boolean lightweight) {
+        this.lightweight = lightweight;
+    }
+
     public String getLibraryPath() {
         return libraryPath;
     }
@@ -113,6 +173,16 @@ public abstract class SCMBasedRetriever extends LibraryRetriever {
     }
 
     protected final void doRetrieve(String name, boolean changelog, @NonNull SCM scm, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
+        doRetrieve(name, null, changelog, scm, null, target, run, listener);
+    }
+
+    /**
+     * @param version the version of the library, if known, so that failures to check out one version do not trip the circuit breaker for others
+     * @param revision the revision {@code scm} was built for, if known, so that a lightweight retrieval gets the same one
+     */
+    final void doRetrieve(String name, @CheckForNull String version, boolean changelog, @NonNull SCM scm, @CheckForNull SCMRevision revision, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
+        // A version missing from an otherwise healthy SCM must not keep other versions from being retrieved.
+        String breakerKey = version == null ? scm.getKey() : scm.getKey() + "@" + version;
         if (libraryPath != null && PROHIBITED_DOUBLE_DOT.matcher(libraryPath).matches()) {
             throw new AbortException("Library path may not contain '..'");
         }
@@ -120,21 +190,38 @@ public abstract class SCMBasedRetriever extends LibraryRetriever {
             listener.getLogger().println("WARNING: ignoring request to compute changelog in clone mode");
             changelog = false;
         }
+        if (lightweight && retrieveLightweight(scm, breakerKey, revision, target, run, listener)) {
+            if (changelog) {
+                listener.getLogger().println("WARNING: ignoring request to compute changelog in lightweight mode");
+            }
+            return;
+        }
         // Adapted from CpsScmFlowDefinition:
         SCMStep delegate = new GenericSCMStep(scm);
         delegate.setPoll(false); // TODO we have no API for determining if a given SCMHead is branch-like or tag-like; would we want to turn on polling if the former?
         delegate.setChangelog(changelog);
         Node node = Jenkins.get();
-        if (clone) {
+        if (clone && MIRROR_CLONES) {
+            String mirrorName = LibraryRecord.directoryNameFor(scm.getKey());
+            FilePath mirror = new FilePath(new File(Jenkins.get().getRootDir(), MIRRORS_DIR)).child(mirrorName);
+            ReentrantLock lock = getMirrorLock(mirrorName);
+            lock.lockInterruptibly();
+            try {
+                listener.getLogger().println("Updating the checkout of " + scm.getKey() + " kept on the controller");
+                checkoutAndCopy(delegate, mirror, scm, breakerKey, target, run, node, listener);
+            } finally {
+                lock.unlock();
+            }
+        } else if (clone) {
             if (libraryPath == null) {
-                retrySCMOperation(listener, () -> {
+                retrySCMOperation(breakerKey, listener, () -> {
                     delegate.checkout(run, target, listener, Jenkins.get().createLauncher(listener));
                     WorkspaceList.tempDir(target).deleteRecursive();
                     return null;
                 });
             } else {
                 FilePath root = target.child("root");
-                retrySCMOperation(listener, () -> {
+                retrySCMOperation(breakerKey, listener, () -> {
                     delegate.checkout(run, root, listener, Jenkins.get().createLauncher(listener));
                     WorkspaceList.tempDir(root).deleteRecursive();
                     return null;
@@ -194,29 +281,197 @@ public abstract class SCMBasedRetriever extends LibraryRetriever {
                 throw new IOException(node.getDisplayName() + " may be offline");
             }
             try (WorkspaceList.Lease lease = computer.getWorkspaceList().allocate(dir)) {
-                // Write the SCM key to a file as a debugging aid.
-                lease.path.withSuffix("-scm-key.txt").write(scm.getKey(), "UTF-8");
-                retrySCMOperation(listener, () -> {
-                    delegate.checkout(run, lease.path, listener, node.createLauncher(listener));
-                    return null;
-                });
-                if (libraryPath == null) {
-                    libraryPath = ".";
+                if (changelog) {
+                    // SCMStep numbers changelog files by looking at those already present in the build directory,
+                    // so libraries retrieved concurrently by one build must not record theirs at the same time.
+                    ReentrantLock lock = getChangelogLock(run);
+                    lock.lockInterruptibly();
+                    try {
+                        checkoutAndCopy(delegate, lease.path, scm, breakerKey, target, run, node, listener);
+                    } finally {
+                        lock.unlock();
+                    }
+                } else {
+                    checkoutAndCopy(delegate, lease.path, scm, breakerKey, target, run, node, listener);
                 }
-                String excludes = INCLUDE_SRC_TEST_IN_LIBRARIES ? null : "src/test/";
-                if (lease.path.child(libraryPath).child("src/test").exists()) {
+            }
+        }
+    }
+
+    /**
+     * Checks out or updates a long-lived checkout, then copies the relevant library files from it.
+     * The caller must have exclusive use of {@code checkout}.
+     */
+    private void checkoutAndCopy(SCMStep delegate, FilePath checkout, SCM scm, String breakerKey, FilePath target, Run<?, ?> run, Node node, TaskListener listener) throws Exception {
+        // Write the SCM key to a file as a debugging aid.
+        checkout.withSuffix("-scm-key.txt").write(scm.getKey(), "UTF-8");
+        retrySCMOperation(breakerKey, listener, () -> {
+            delegate.checkout(run, checkout, listener, node.createLauncher(listener));
+            return null;
+        });
+        String path = libraryPath != null ? libraryPath : ".";
+        String excludes = INCLUDE_SRC_TEST_IN_LIBRARIES ? null : "src/test/";
+        if (checkout.child(path).child("src/test").exists()) {
+            listener.getLogger().println("Excluding src/test/ from checkout of " + scm.getKey() + " so that library test code cannot be accessed by Pipelines.");
+            listener.getLogger().println("To remove this log message, move the test code outside of src/. To restore the previous behavior that allowed access to files in src/test/, pass -D" + SCMSourceRetriever.class.getName() + ".INCLUDE_SRC_TEST_IN_LIBRARIES=true to the java command used to start Jenkins.");
+        }
+        // Cannot add WorkspaceActionImpl to private CpsFlowExecution.flowStartNodeActions; do we care?
+        // Copy sources with relevant files from the checkout:
+        checkout.child(path).copyRecursiveTo("src/**/*.groovy,vars/*.groovy,vars/*.txt,resources/", excludes, target);
+    }
+
+    static @NonNull ReentrantLock getMirrorLock(@NonNull String name) {
+        return mirrorLocks.computeIfAbsent(name, k -> new ReentrantLock());
+    }
+
+    private static @NonNull ReentrantLock getChangelogLock(@NonNull Run<?, ?> run) {
+        synchronized (changelogLocks) {
+            return changelogLocks.computeIfAbsent(run, k -> new ReentrantLock());
+        }
+    }
+
+    /**
+     * Copies the library directories straight from the SCM without a checkout, if it offers an {@link SCMFileSystem}.
+     * Only the files a checkout would have kept are copied, and symbolic links are skipped.
+     * @return false if the SCM does not support this
+     */
+    private boolean retrieveLightweight(@NonNull SCM scm, @NonNull String breakerKey, @CheckForNull SCMRevision revision, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
+        try (SCMFileSystem fs = retrySCMOperation(breakerKey, listener, () -> SCMFileSystem.of(run.getParent(), scm, revision))) {
+            if (fs == null) {
+                listener.getLogger().println("Lightweight retrieval is not supported for " + scm.getKey() + ", checking out instead");
+                return false;
+            }
+            listener.getLogger().println("Retrieving library sources from " + scm.getKey() + " without a checkout");
+            SCMFile root = fs.getRoot();
+            if (libraryPath != null) {
+                root = root.child(libraryPath.substring(0, libraryPath.length() - 1));
+                if (!root.isDirectory()) {
+                    throw new AbortException("Did not find " + libraryPath + " in " + scm.getKey());
+                }
+            }
+            SCMFile _root = root;
+            retrySCMOperation(breakerKey, listener, () -> {
+                for (String dir : List.of("src", "vars", "resources")) {
+                    copyLightweight(dir, _root.child(dir), target.child(dir), "", scm, listener);
+                }
+                return null;
+            });
+            return true;
+        }
+    }
+
+    /**
+     * Copies the files in one of the library directories, keeping the same files as {@link #doRetrieve} does from a checkout.
+     * @param dir {@code src}, {@code vars}, or {@code resources}
+     * @param rel the path of {@code from} within that directory, either empty or ending with a slash
+     */
+    private static void copyLightweight(String dir, SCMFile from, FilePath to, String rel, SCM scm, TaskListener listener) throws IOException, InterruptedException {
+        if (!from.isDirectory()) {
+            return;
+        }
+        for (SCMFile child : from.children()) {
+            String name = child.getName();
+            switch (child.getType()) {
+            case DIRECTORY:
+                if (dir.equals("vars")) {
+                    break;
+                }
+                if (dir.equals("src") && rel.isEmpty() && name.equals("test") && !INCLUDE_SRC_TEST_IN_LIBRARIES) {
                     listener.getLogger().println("Excluding src/test/ from checkout of " + scm.getKey() + " so that library test code cannot be accessed by Pipelines.");
                     listener.getLogger().println("To remove this log message, move the test code outside of src/. To restore the previous behavior that allowed access to files in src/test/, pass -D" + SCMSourceRetriever.class.getName() + ".INCLUDE_SRC_TEST_IN_LIBRARIES=true to the java command used to start Jenkins.");
+                    break;
+                }
+                copyLightweight(dir, child, to.child(name), rel + name + "/", scm, listener);
+                break;
+            case REGULAR_FILE:
+                if (dir.equals("resources") || name.endsWith(".groovy") || (dir.equals("vars") && name.endsWith(".txt"))) {
+                    try (InputStream in = child.content()) {
+                        to.child(name).copyFrom(in);
+                    }
                 }
-                // Cannot add WorkspaceActionImpl to private CpsFlowExecution.flowStartNodeActions; do we care?
-                // Copy sources with relevant files from the checkout:
-                lease.path.child(libraryPath).copyRecursiveTo("src/**/*.groovy,vars/*.groovy,vars/*.txt,resources/", excludes, target);
+                break;
+            default:
+                LOGGER.fine(() -> "Skipping " + dir + "/" + rel + name + " of type " + child.getType());
             }
         }
     }
 
+    /**
+     * Like {@link #retrySCMOperation(TaskListener, Callable)}, but fails fast without contacting the SCM
+     * if operations on the same SCM have failed {@link #CIRCUIT_BREAKER_FAILURES} times in a row,
+     * until {@link #CIRCUIT_BREAKER_OPEN_SECONDS} have passed and a single operation has been let through and succeeded.
+     * @param key identifies the SCM, such as {@link SCM#getKey}
+     */
+    static <T> T retrySCMOperation(@NonNull String key, TaskListener listener, Callable<T> task) throws Exception {
+        if (CIRCUIT_BREAKER_FAILURES <= 0) {
+            return retrySCMOperation(listener, task);
+        }
+        CircuitBreaker breaker = circuitBreakers.computeIfAbsent(key, k -> new CircuitBreaker());
+        boolean probe = breaker.enter(key);
+        try {
+            T ret = retrySCMOperation(listener, task);
+            breaker.succeeded();
+            return ret;
+        } catch (InterruptedException | InterruptedIOException x) {
+            throw x;
+        } catch (Exception x) {
+            breaker.failed(key);
+            throw x;
+        } finally {
+            if (probe) {
+                // Also after an Error, so that the breaker cannot be left refusing every operation.
+                breaker.release();
+            }
+        }
+    }
+
+    /**
+     * Tracks consecutive failures of operations on one SCM for {@link #retrySCMOperation(String, TaskListener, Callable)}.
+     */
+    static final class CircuitBreaker {
+        private int failures;
+        /** When the last operation failed. */
+        private long lastFailure;
+        /** Whether an operation has been let through to see if the SCM has recovered. */
+        private boolean probing;
+
+        /**
+         * @return true if the caller has been let through to see if the SCM has recovered, and must call {@link #release}
+         */
+        synchronized boolean enter(String key) throws AbortException {
+            if (failures < CIRCUIT_BREAKER_FAILURES) {
+                return false;
+            }
+            long retryAt = lastFailure + TimeUnit.SECONDS.toMillis(CIRCUIT_BREAKER_OPEN_SECONDS);
+            if (probing || System.currentTimeMillis() < retryAt) {
+                throw new AbortException("Not contacting " + key + " since the last " + failures + " attempts failed; will try again after " + new Date(retryAt));
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized void failed(String key) {
+            int n = ++failures;
+            lastFailure = System.currentTimeMillis();
+            if (n == CIRCUIT_BREAKER_FAILURES) {
+                LOGGER.warning(() -> "Operations on " + key + " failed " + n + " times in a row; refusing further attempts for " + CIRCUIT_BREAKER_OPEN_SECONDS + " seconds");
+            }
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+        }
+
+        /** Ends the operation let through by {@link #enter}, however it completed. */
+        synchronized void release() {
+            probing = false;
+        }
+    }
+
     protected static <T> T retrySCMOperation(TaskListener listener, Callable<T> task) throws Exception{
         T ret = null;
+        long start = System.nanoTime();
+        int attempt = 0;
         for (int retryCount = Jenkins.get().getScmCheckoutRetryCount(); retryCount >= 0; retryCount--) {
             try {
                 ret = task.call();
@@ -229,7 +484,7 @@ public abstract class SCMBasedRetriever extends LibraryRetriever {
                     listener.error(e.getMessage());
                 }
             }
-            catch (InterruptedIOException e) {
+            catch (InterruptedException | InterruptedIOException e) {
                 throw e;
             }
             catch (Exception e) {
@@ -240,12 +495,28 @@ public abstract class SCMBasedRetriever extends LibraryRetriever {
             if (retryCount == 0)   // all attempts failed
                 throw new AbortException("Maximum checkout retry attempts reached, aborting");
 
-            listener.getLogger().println("Retrying after 10 seconds");
-            Thread.sleep(10000);
+            int retry = ++attempt;
+            long delay = retryDelaySeconds(retry - 1);
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+            if (RETRY_DEADLINE_SECONDS > 0 && elapsed + delay > RETRY_DEADLINE_SECONDS) {
+                throw new AbortException("Checkout could not be completed within " + RETRY_DEADLINE_SECONDS + " seconds, aborting");
+            }
+            listener.getLogger().println("Retrying after " + delay + " seconds");
+            LOGGER.fine(() -> "Retry #" + retry + " of an SCM operation after " + delay + " seconds, " + elapsed + " seconds after the first attempt");
+            Thread.sleep(TimeUnit.SECONDS.toMillis(delay));
         }
         return ret;
     }
 
+    /**
+     * Picks how long to wait before a retry: {@link #RETRY_INITIAL_DELAY_SECONDS} doubled for each earlier retry, up to {@link #RETRY_MAX_DELAY_SECONDS},
+     * of which up to half is randomly taken off so that builds which failed together do not all retry together.
+     */
+    static long retryDelaySeconds(int attempt) {
+        long base = Math.min(RETRY_MAX_DELAY_SECONDS, RETRY_INITIAL_DELAY_SECONDS << Math.min(attempt, 20));
+        return base <= 0 ? 0 : base - ThreadLocalRandom.current().nextLong(base / 2 + 1);
+    }
+
     // TODO there is WorkspaceList.tempDir but no API to make other variants
     private static String getFilePathSuffix() {
         return System.getProperty(WorkspaceList.class.getName(), "@");
@@ -62,7 +62,7 @@ public class SCMRetriever extends SCMBasedRetriever {
     }
 
     @Override public void retrieve(String name, String version, boolean changelog, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
-        doRetrieve(name, changelog, scm, target, run, listener);
+        doRetrieve(name, version, changelog, scm, null, target, run, listener);
     }
 
     @Override public void retrieve(String name, String version, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
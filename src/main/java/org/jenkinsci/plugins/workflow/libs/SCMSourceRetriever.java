@@ -24,6 +24,8 @@
 
 package org.jenkinsci.plugins.workflow.libs;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.ExtensionList;
@@ -72,11 +74,38 @@ public class SCMSourceRetriever extends SCMBasedRetriever {
     }
 
     @Override public void retrieve(String name, String version, boolean changelog, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
-        SCMRevision revision = retrySCMOperation(listener, () -> scm.fetch(version, listener, run.getParent()));
+        retrieve(name, fetch(name, version, run, listener), changelog, target, run, listener);
+    }
+
+    /**
+     * Resolves a version of the library to a specific revision.
+     */
+    @NonNull SCMRevision fetch(@NonNull String name, @NonNull String version, @NonNull Run<?, ?> run, @NonNull TaskListener listener) throws Exception {
+        SCMRevision revision = retrySCMOperation(scm.getClass().getName() + " " + scm.getId(), listener, () -> scm.fetch(version, listener, run.getParent()));
         if (revision == null) {
             throw new AbortException("No version " + version + " found for library " + name);
         }
-        doRetrieve(name, changelog, scm.build(revision.getHead(), revision), target, run, listener);
+        return revision;
+    }
+
+    /**
+     * Obtains library sources for a revision previously returned by {@link #fetch}.
+     */
+    void retrieve(@NonNull String name, @NonNull SCMRevision revision, boolean changelog, @NonNull FilePath target, @NonNull Run<?, ?> run, @NonNull TaskListener listener) throws Exception {
+        doRetrieve(name, revision.getHead().getName(), changelog, scm.build(revision.getHead(), revision), revision, target, run, listener);
+    }
+
+    /**
+     * Identifies the sources {@link #retrieve(String, SCMRevision, boolean, FilePath, Run, TaskListener)} would produce,
+     * independently of the name, version, or trust of the library configuration.
+     * @return a string that can be safely used as a directory name, or null if the revision does not reliably identify its contents
+     */
+    @CheckForNull String contentKey(@NonNull SCMRevision revision) {
+        if (!revision.isDeterministic()) {
+            return null;
+        }
+        return LibraryRecord.directoryNameFor(scm.build(revision.getHead(), revision).getKey(), revision.toString(),
+                String.valueOf(getLibraryPath()), String.valueOf(isClone()), String.valueOf(isLightweight()), String.valueOf(INCLUDE_SRC_TEST_IN_LIBRARIES));
     }
 
     @Override public void retrieve(String name, String version, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
@@ -28,26 +28,43 @@ import com.cloudbees.hudson.plugins.folder.Folder;
 
 import hudson.ExtensionList;
 import hudson.FilePath;
+import hudson.markup.MarkupFormatter;
 import hudson.model.Job;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.plugins.git.BranchSpec;
 import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.UserRemoteConfig;
 import hudson.scm.ChangeLogSet;
 import hudson.slaves.WorkspaceList;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.time.ZonedDateTime;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import jenkins.plugins.git.GitSCMSource;
 import jenkins.plugins.git.GitSampleRepoRule;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.io.FileMatchers.anExistingFile;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
 import org.jenkinsci.plugins.workflow.cps.GlobalVariable;
 import org.jenkinsci.plugins.workflow.cps.global.GrapeTest;
 import org.jenkinsci.plugins.workflow.cps.global.UserDefinedGlobalVariable;
@@ -55,9 +72,13 @@ import org.jenkinsci.plugins.workflow.cps.replay.ReplayAction;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.libs.ClasspathAdder.Addition;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
@@ -197,6 +218,83 @@ public class LibraryAdderTest {
         assertEquals("Says something very special!", ((UserDefinedGlobalVariable) var).getHelpHtml());
     }
 
+    @Test public void globalVariableHelpIsRenderedOnce() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("vars/myecho.groovy", "def call() {echo 'something special'}");
+        sampleRepo.write("vars/myecho.txt", "Says something rather special!");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        GlobalLibraries.get().setLibraries(Collections.singletonList(
+            new LibraryConfiguration("echo-utils",
+                new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)))));
+        CountingMarkupFormatter formatter = new CountingMarkupFormatter();
+        r.jenkins.setMarkupFormatter(formatter);
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("@Library('echo-utils@master') import myecho; myecho()", true));
+        for (int i = 0; i < 2; i++) {
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            GlobalVariable var = GlobalVariable.byName("myecho", b);
+            assertNotNull(var);
+            assertEquals("Says something rather special!", ((UserDefinedGlobalVariable) var).getHelpHtml());
+        }
+        // The second build has its own copy of the help, with the same contents.
+        assertEquals(1, formatter.translations.get());
+    }
+    private static final class CountingMarkupFormatter extends MarkupFormatter {
+        final AtomicInteger translations = new AtomicInteger();
+        @Override public void translate(String markup, Writer output) throws IOException {
+            translations.incrementAndGet();
+            output.write(markup);
+        }
+    }
+
+    @Test public void globalVariableForJob() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("vars/myecho.groovy", "def call() {echo 'something special'}");
+        sampleRepo.write("vars/myecho.txt", "Says something very special!");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration lc = new LibraryConfiguration("echo-utils", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        lc.setDefaultVersion("master");
+        lc.setImplicit(true);
+        GlobalLibraries.get().setLibraries(Collections.singletonList(lc));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        WorkflowJob p2 = r.jenkins.createProject(WorkflowJob.class, "p2");
+        assertThat(ExtensionList.lookupSingleton(LibraryAdder.GlobalVars.class).forJob(p2), empty());
+        p.setDefinition(new CpsFlowDefinition("myecho()", true));
+        r.assertLogContains("something special", r.buildAndAssertSuccess(p));
+        Collection<GlobalVariable> vars = ExtensionList.lookupSingleton(LibraryAdder.GlobalVars.class).forJob(p2);
+        assertEquals(1, vars.size());
+        GlobalVariable var = vars.iterator().next();
+        assertEquals("myecho", var.getName());
+        assertEquals("Says something very special!", ((UserDefinedGlobalVariable) var).getHelpHtml());
+    }
+
+    @Test public void globalVariablesAreReusedUntilLibrariesChange() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("vars/one.groovy", "def call() {echo 'one'}");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        sampleRepo2.init();
+        sampleRepo2.write("vars/two.groovy", "def call() {echo 'two'}");
+        sampleRepo2.git("add", "vars");
+        sampleRepo2.git("commit", "--message=init");
+        GlobalLibraries.get().setLibraries(List.of(
+            new LibraryConfiguration("one", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true))),
+            new LibraryConfiguration("two", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo2.toString(), "", "*", "", true)))));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("@Library('one@master') _; one(); semaphore 'wait'; library 'two@master'; two()", true));
+        WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait/1", b);
+        LibraryAdder.GlobalVars globalVars = ExtensionList.lookupSingleton(LibraryAdder.GlobalVars.class);
+        Collection<GlobalVariable> vars = globalVars.forRun(b);
+        assertThat(vars.stream().map(GlobalVariable::getName).collect(Collectors.toList()), contains("one"));
+        assertSame(vars, globalVars.forRun(b));
+        SemaphoreStep.success("wait/1", null);
+        r.assertLogContains("two", r.assertBuildStatusSuccess(r.waitForCompletion(b)));
+        assertThat(globalVars.forRun(b).stream().map(GlobalVariable::getName).collect(Collectors.toList()), contains("one", "two"));
+    }
+
     @Test public void dynamicLibraries() throws Exception {
         sampleRepo.init();
         sampleRepo.write("src/pkg/Lib.groovy", "package pkg; class Lib {static String CONST = 'constant'}");
@@ -275,7 +373,109 @@ public class LibraryAdderTest {
         r.assertLogContains(originalMessage, b2);
     }
 
+    @Test public void replayDoesNotModifyLinkedCache() throws Exception {
+        boolean linkCachedLibraries = LibraryAdder.LINK_CACHED_LIBRARIES;
+        LibraryAdder.LINK_CACHED_LIBRARIES = true;
+        try {
+            sampleRepo.init();
+            String originalScript = "def call() {echo 'original'}";
+            sampleRepo.write("vars/untrusted.groovy", originalScript);
+            sampleRepo.git("add", "vars");
+            sampleRepo.git("commit", "--message=init");
+            LibraryConfiguration config = new LibraryConfiguration("untrusted", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+            config.setDefaultVersion("master");
+            config.setCachingConfiguration(new LibraryCachingConfiguration(0, null));
+            GlobalUntrustedLibraries.get().setLibraries(Collections.singletonList(config));
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("@Library('untrusted') _; untrusted()", true));
+            WorkflowRun b1 = r.buildAndAssertSuccess(p);
+            r.assertLogContains("original", b1);
+            LibraryRecord record = b1.getAction(LibrariesAction.class).getLibraries().get(0);
+            FilePath cache = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(record.getDirectoryName());
+            ReplayAction ra = b1.getAction(ReplayAction.class);
+            WorkflowRun b2 = (WorkflowRun) ra.run(ra.getOriginalScript(), Collections.singletonMap("untrusted", originalScript.replace("original", "edited"))).get();
+            r.assertBuildStatusSuccess(b2);
+            r.assertLogContains("edited", b2);
+            assertEquals(originalScript, cache.child("vars/untrusted.groovy").readToString());
+            WorkflowRun b3 = r.buildAndAssertSuccess(p);
+            r.assertLogContains("original", b3);
+            r.assertLogNotContains("edited", b3);
+        } finally {
+            LibraryAdder.LINK_CACHED_LIBRARIES = linkCachedLibraries;
+        }
+    }
+
+    @Test public void identicalSourcesAreRetrievedOnce() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'foo' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration trusted = new LibraryConfiguration("trusted", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        trusted.setDefaultVersion("master");
+        trusted.setCachingConfiguration(new LibraryCachingConfiguration(0, null));
+        GlobalLibraries.get().setLibraries(Collections.singletonList(trusted));
+        LibraryConfiguration untrusted = new LibraryConfiguration("untrusted", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        untrusted.setDefaultVersion("master");
+        untrusted.setCachingConfiguration(new LibraryCachingConfiguration(0, null));
+        GlobalUntrustedLibraries.get().setLibraries(Collections.singletonList(untrusted));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("@Library('trusted') _; foo()", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("Library trusted@master successfully cached.", b);
+        r.assertLogNotContains("was already retrieved for another configuration", b);
+        p.setDefinition(new CpsFlowDefinition("@Library('untrusted') _; foo()", true));
+        b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("was already retrieved for another configuration", b);
+        r.assertLogContains("Library untrusted@master successfully cached.", b);
+        r.assertLogContains("foo", b);
+        assertEquals(1, LibraryCachingConfiguration.getContentStoreDir().listDirectories().size());
+        // A changelog needs a checkout of its own.
+        LibraryConfiguration changes = new LibraryConfiguration("changes", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        changes.setDefaultVersion("master");
+        changes.setIncludeInChangesets(true);
+        changes.setCachingConfiguration(new LibraryCachingConfiguration(0, null));
+        GlobalLibraries.get().getLibraries().add(changes);
+        p.setDefinition(new CpsFlowDefinition("@Library('changes') _; foo()", true));
+        b = r.buildAndAssertSuccess(p);
+        r.assertLogNotContains("was already retrieved for another configuration", b);
+        r.assertLogContains("Library changes@master successfully cached.", b);
+        assertEquals(1, LibraryCachingConfiguration.getContentStoreDir().listDirectories().size());
+    }
+
     @Issue({"JENKINS-38021", "JENKINS-31484"})
+    @Test public void classpathAddersAreConsultedOncePerBuild() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("src/pkg/A.groovy", "package pkg; class A {static String hello() {B.hello()}}");
+        sampleRepo.write("src/pkg/B.groovy", "package pkg; class B {static String hello() {'hello from B'}}");
+        sampleRepo.write("vars/greet.groovy", "def call() {echo pkg.A.hello()}");
+        sampleRepo.git("add", "src", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration config = new LibraryConfiguration("lib", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        GlobalLibraries.get().setLibraries(Collections.singletonList(config));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("greet()", true));
+        CountingAdder.calls.set(0);
+        WorkflowRun b1 = r.buildAndAssertSuccess(p);
+        r.assertLogContains("hello from B", b1);
+        // Compiling greet, A, and B asks for no library of its own.
+        assertEquals(1, CountingAdder.calls.get());
+        // A replayed build has not consulted the adders yet.
+        ReplayAction ra = b1.getAction(ReplayAction.class);
+        WorkflowRun b2 = (WorkflowRun) ra.run(ra.getOriginalScript(), Collections.emptyMap()).get();
+        r.assertBuildStatusSuccess(b2);
+        r.assertLogContains("hello from B", b2);
+        assertEquals(2, CountingAdder.calls.get());
+    }
+    @TestExtension("classpathAddersAreConsultedOncePerBuild") public static class CountingAdder extends ClasspathAdder {
+        static final AtomicInteger calls = new AtomicInteger();
+        @Override public List<Addition> add(CpsFlowExecution execution, List<String> libraries, HashMap<String, Boolean> changelogs) throws Exception {
+            calls.incrementAndGet();
+            return Collections.emptyList();
+        }
+    }
+
     @Test public void gettersAndSetters() throws Exception {
         sampleRepo.init();
         sampleRepo.write("vars/config.groovy", "class config implements Serializable {private String foo; public String getFoo() {return(/loaded ${this.foo}/)}; public void setFoo(String value) {this.foo = value.toUpperCase()}}");
@@ -455,6 +655,7 @@ public class LibraryAdderTest {
         //Expire the cache
         long oldMillis = ZonedDateTime.now().minusMinutes(35).toInstant().toEpochMilli();
         cache.touch(oldMillis);
+        LibraryCacheIndex.get().reload();
         QueueTaskFuture<WorkflowRun> f1 = p1.scheduleBuild2(0);
         QueueTaskFuture<WorkflowRun> f2 = p2.scheduleBuild2(0);
         r.assertBuildStatus(Result.SUCCESS, f1);
@@ -465,6 +666,259 @@ public class LibraryAdderTest {
         // r.assertLogContains("Library library@master is cached. Copying from home.", f2.get());
     }
 
+    @Test
+    public void expiredCacheIsKeptIfUnchanged() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'initial' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration config = new LibraryConfiguration("library",
+                new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        config.setCachingConfiguration(new LibraryCachingConfiguration(30, null));
+        GlobalLibraries.get().getLibraries().add(config);
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("foo()", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        LibraryRecord record = b.getAction(LibrariesAction.class).getLibraries().get(0);
+        FilePath cache = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(record.getDirectoryName());
+        long oldMillis = ZonedDateTime.now().minusMinutes(35).toInstant().toEpochMilli();
+        cache.touch(oldMillis);
+        LibraryCacheIndex.get().reload();
+        b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("Library library@master is due for a refresh but has not changed. Copying from cache.", b);
+        r.assertLogContains("initial", b);
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'modified' }");
+        sampleRepo.git("commit", "--all", "--message=modified");
+        cache.touch(oldMillis);
+        LibraryCacheIndex.get().reload();
+        b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("Library library@master is due for a refresh after 30 minutes, refreshing.", b);
+        r.assertLogContains("modified", b);
+    }
+
+    @Test
+    public void expiredCacheIsUsedWhileRefreshing() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'initial' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration config = new LibraryConfiguration("library",
+                new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        LibraryCachingConfiguration cachingConfiguration = new LibraryCachingConfiguration(30, null);
+        cachingConfiguration.setStaleWhileRevalidate(true);
+        config.setCachingConfiguration(cachingConfiguration);
+        GlobalLibraries.get().getLibraries().add(config);
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("foo()", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("initial", b);
+        LibraryRecord record = b.getAction(LibrariesAction.class).getLibraries().get(0);
+        FilePath cache = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(record.getDirectoryName());
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'modified' }");
+        sampleRepo.git("commit", "--all", "--message=modified");
+        long oldMillis = ZonedDateTime.now().minusMinutes(35).toInstant().toEpochMilli();
+        cache.touch(oldMillis);
+        LibraryCacheIndex.get().reload();
+        // The refresh is only started while the build is still running.
+        p.setDefinition(new CpsFlowDefinition("foo(); semaphore 'refresh'", true));
+        b = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("refresh/1", b);
+        r.assertLogContains("is due for a refresh, copying from cache while it is refreshed in the background", b);
+        r.assertLogContains("initial", b);
+        while (cache.lastModified() == oldMillis || !cache.child("vars/foo.groovy").readToString().contains("modified")) {
+            Thread.sleep(100);
+        }
+        SemaphoreStep.success("refresh/1", null);
+        r.assertBuildStatusSuccess(r.waitForCompletion(b));
+        p.setDefinition(new CpsFlowDefinition("foo()", true));
+        b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("Library library@master is cached. Copying from cache.", b);
+        r.assertLogContains("modified", b);
+    }
+
+    @Test
+    public void failedRefreshKeepsCacheIntact() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'initial' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration config = new LibraryConfiguration("library",
+                new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        config.setCachingConfiguration(new LibraryCachingConfiguration(30, null));
+        GlobalLibraries.get().getLibraries().add(config);
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("foo()", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        LibraryRecord record = b.getAction(LibrariesAction.class).getLibraries().get(0);
+        FilePath cache = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(record.getDirectoryName());
+        sampleRepo.git("rm", "-r", "vars");
+        sampleRepo.write("README", "nothing here");
+        sampleRepo.git("add", "README");
+        sampleRepo.git("commit", "--message=empty");
+        cache.touch(ZonedDateTime.now().minusMinutes(35).toInstant().toEpochMilli());
+        LibraryCacheIndex.get().reload();
+        b = r.buildAndAssertStatus(Result.FAILURE, p);
+        r.assertLogContains("Library library@master is empty after retrieval in job " + p.getFullName() + ".", b);
+        assertThat(cache.child("vars/foo.groovy").readToString(), containsString("initial"));
+        assertFalse(cache.withSuffix("-staging").exists());
+        assertFalse(cache.withSuffix("-previous").exists());
+    }
+
+    @Test
+    public void failedRefreshFallsBackToCache() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'initial' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration config = new LibraryConfiguration("library",
+                new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        LibraryCachingConfiguration cachingConfiguration = new LibraryCachingConfiguration(30, null);
+        cachingConfiguration.setFallBackToCache(true);
+        config.setCachingConfiguration(cachingConfiguration);
+        GlobalLibraries.get().getLibraries().add(config);
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("foo()", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        LibraryRecord record = b.getAction(LibrariesAction.class).getLibraries().get(0);
+        assertFalse(record.isFromCacheFallback());
+        FilePath cache = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(record.getDirectoryName());
+        sampleRepo.git("rm", "-r", "vars");
+        sampleRepo.write("README", "nothing here");
+        sampleRepo.git("add", "README");
+        sampleRepo.git("commit", "--message=empty");
+        cache.touch(ZonedDateTime.now().minusMinutes(35).toInstant().toEpochMilli());
+        LibraryCacheIndex.get().reload();
+        b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("Failed to cache library library@master.", b);
+        r.assertLogContains("WARNING: Library library@master could not be refreshed. Using the copy cached at ", b);
+        r.assertLogContains("initial", b);
+        assertTrue(b.getAction(LibrariesAction.class).getLibraries().get(0).isFromCacheFallback());
+        // Never cached, so nothing to fall back to.
+        LibraryCachingConfiguration.getGlobalLibrariesCacheDir().deleteRecursive();
+        LibraryCacheIndex.get().reload();
+        b = r.buildAndAssertStatus(Result.FAILURE, p);
+        r.assertLogContains("Library library@master is empty after retrieval in job " + p.getFullName() + ".", b);
+    }
+
+    @Test
+    public void cacheHitsAreServedFromIndex() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'foo' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration config = new LibraryConfiguration("library",
+                new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        config.setCachingConfiguration(new LibraryCachingConfiguration(30, null));
+        GlobalLibraries.get().getLibraries().add(config);
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("foo()", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        LibraryRecord record = b.getAction(LibrariesAction.class).getLibraries().get(0);
+        FilePath cache = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(record.getDirectoryName());
+        long oldMillis = ZonedDateTime.now().minusDays(1).toInstant().toEpochMilli();
+        cache.child(LibraryCachingConfiguration.LAST_READ_FILE).touch(oldMillis);
+        b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("Library library@master is cached. Copying from cache.", b);
+        assertEquals(oldMillis, cache.child(LibraryCachingConfiguration.LAST_READ_FILE).lastModified());
+        LibraryCacheIndex.Entry entry = LibraryCacheIndex.get().lookup(cache);
+        assertNotNull(entry);
+        assertThat(entry.name, is("library"));
+        assertTrue(entry.lastRead > oldMillis);
+        LibraryCacheIndex.get().save();
+        assertTrue(LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(LibraryCacheIndex.INDEX_FILE).exists());
+    }
+
+    @Test
+    public void concurrentUncachedRetrievalsAreShared() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'shared' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        BlockingRetriever retriever = new BlockingRetriever(new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        LibraryConfiguration config = new LibraryConfiguration("library", retriever);
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        // Builds recording a changelog each check out the library.
+        config.setIncludeInChangesets(false);
+        GlobalLibraries.get().getLibraries().add(config);
+        WorkflowJob p1 = r.createProject(WorkflowJob.class);
+        WorkflowJob p2 = r.createProject(WorkflowJob.class);
+        p1.setDefinition(new CpsFlowDefinition("foo()", true));
+        p2.setDefinition(new CpsFlowDefinition("foo()", true));
+        QueueTaskFuture<WorkflowRun> f1 = p1.scheduleBuild2(0);
+        retriever.started.await();
+        QueueTaskFuture<WorkflowRun> f2 = p2.scheduleBuild2(0);
+        r.waitForMessage("Waiting for library library@master to be retrieved by another build.", f2.waitForStart());
+        retriever.proceed.countDown();
+        r.assertLogContains("shared", r.assertBuildStatus(Result.SUCCESS, f1));
+        r.assertLogContains("shared", r.assertBuildStatus(Result.SUCCESS, f2));
+        assertEquals(1, retriever.retrievals.get());
+    }
+
+    @Test
+    public void librariesAreRetrievedConcurrently() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/a.groovy", "def call() { echo 'using a' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        sampleRepo2.init();
+        sampleRepo2.write("vars/b.groovy", "def call() { echo 'using b' }");
+        sampleRepo2.git("add", "vars");
+        sampleRepo2.git("commit", "--message=init");
+        BlockingRetriever retrieverA = new BlockingRetriever(new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        BlockingRetriever retrieverB = new BlockingRetriever(new SCMSourceRetriever(new GitSCMSource(null, sampleRepo2.toString(), "", "*", "", true)));
+        // Left to record changelogs, as by default.
+        LibraryConfiguration a = new LibraryConfiguration("a", retrieverA);
+        a.setDefaultVersion("master");
+        LibraryConfiguration b = new LibraryConfiguration("b", retrieverB);
+        b.setDefaultVersion("master");
+        GlobalLibraries.get().setLibraries(List.of(a, b));
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("@Library(['a', 'b']) _; a(); b()", true));
+        QueueTaskFuture<WorkflowRun> f = p.scheduleBuild2(0);
+        assertTrue(retrieverA.started.await(1, TimeUnit.MINUTES));
+        assertTrue(retrieverB.started.await(1, TimeUnit.MINUTES));
+        retrieverB.proceed.countDown();
+        retrieverA.proceed.countDown();
+        WorkflowRun build = r.assertBuildStatus(Result.SUCCESS, f);
+        r.assertLogContains("using a", build);
+        r.assertLogContains("using b", build);
+        String log = JenkinsRule.getLog(build);
+        assertThat(log.indexOf("Loading library a@master"), lessThan(log.indexOf("Loading library b@master")));
+        // Each checkout got a changelog file of its own.
+        assertThat(new File(build.getRootDir(), "changelog0.xml"), anExistingFile());
+        assertThat(new File(build.getRootDir(), "changelog1.xml"), anExistingFile());
+    }
+
+    private static final class BlockingRetriever extends LibraryRetriever {
+        private final LibraryRetriever delegate;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger retrievals = new AtomicInteger();
+        BlockingRetriever(LibraryRetriever delegate) {
+            this.delegate = delegate;
+        }
+        @Override public void retrieve(String name, String version, boolean changelog, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
+            retrievals.incrementAndGet();
+            started.countDown();
+            proceed.await();
+            delegate.retrieve(name, version, changelog, target, run, listener);
+        }
+        @Override public void retrieve(String name, String version, FilePath target, Run<?, ?> run, TaskListener listener) throws Exception {
+            retrieve(name, version, false, target, run, listener);
+        }
+    }
+
     @Issue("JENKINS-68544")
     @WithoutJenkins
     @Test public void className() {
@@ -30,6 +30,7 @@ import java.io.File;
 import java.time.ZonedDateTime;
 import jenkins.plugins.git.GitSCMSource;
 import jenkins.plugins.git.GitSampleRepoRule;
+import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -41,6 +42,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.io.FileMatchers.anExistingDirectory;
 import static org.hamcrest.io.FileMatchers.anExistingFile;
+import static org.junit.Assert.assertTrue;
 
 public class LibraryCachingCleanupTest {
 
@@ -76,9 +78,80 @@ public class LibraryCachingCleanupTest {
         // Run LibraryCachingCleanup after modifying LAST_READ_FILE to be an old date and and show that cache is deleted.
         long oldMillis = ZonedDateTime.now().minusDays(LibraryCachingCleanup.EXPIRE_AFTER_READ_DAYS + 1).toInstant().toEpochMilli();
         cache.child(LibraryCachingConfiguration.LAST_READ_FILE).touch(oldMillis);
+        LibraryCacheIndex.get().reload();
         ExtensionList.lookupSingleton(LibraryCachingCleanup.class).execute(StreamTaskListener.fromStderr());
         assertThat(new File(cache.getRemote()), not(anExistingDirectory()));
         assertThat(new File(cache.withSuffix("-name.txt").getRemote()), not(anExistingDirectory()));
+        // The variables recorded for the library outlive its cache directory until they have not been used for as long.
+        File catalog = new File(new File(r.jenkins.getRootDir(), LibraryVariableCatalog.CATALOG_DIR), record.getDirectoryName());
+        assertThat(catalog, anExistingDirectory());
+        assertTrue(new File(catalog, LibraryVariableCatalog.VARIABLES_FILE).setLastModified(oldMillis));
+        ExtensionList.lookupSingleton(LibraryCachingCleanup.class).execute(StreamTaskListener.fromStderr());
+        assertThat(catalog, not(anExistingDirectory()));
+    }
+
+    @Test
+    public void leastRecentlyReadDirectoriesAreEvictedOverMaxSize() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'foo' }");
+        sampleRepo.write("resources/big.txt", StringUtils.repeat("x", 700 * 1024));
+        sampleRepo.git("add", "vars", "resources");
+        sampleRepo.git("commit", "--message=init");
+        for (String name : new String[] {"a", "b"}) {
+            LibraryConfiguration config = new LibraryConfiguration(name,
+                    new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+            config.setDefaultVersion("master");
+            config.setCachingConfiguration(new LibraryCachingConfiguration(30, null));
+            GlobalLibraries.get().getLibraries().add(config);
+        }
+        long originalMaxSize = LibraryCachingCleanup.MAX_CACHE_SIZE_MB;
+        LibraryCachingCleanup.MAX_CACHE_SIZE_MB = 1;
+        try {
+            WorkflowJob p = r.createProject(WorkflowJob.class);
+            p.setDefinition(new CpsFlowDefinition("@Library('a') _; foo()", true));
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            FilePath cacheA = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(b.getAction(LibrariesAction.class).getLibraries().get(0).getDirectoryName());
+            assertThat(new File(cacheA.getRemote()), anExistingDirectory());
+            p.setDefinition(new CpsFlowDefinition("@Library('b') _; foo()", true));
+            b = r.buildAndAssertSuccess(p);
+            FilePath cacheB = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(b.getAction(LibrariesAction.class).getLibraries().get(0).getDirectoryName());
+            assertThat(new File(cacheB.getRemote()), anExistingDirectory());
+            assertThat(new File(cacheA.getRemote()), not(anExistingDirectory()));
+            assertThat(new File(cacheA.withSuffix("-name.txt").getRemote()), not(anExistingFile()));
+        } finally {
+            LibraryCachingCleanup.MAX_CACHE_SIZE_MB = originalMaxSize;
+        }
+    }
+
+    @Test
+    public void recentlyPopulatedDirectoriesAreKeptWhenLowOnDiskSpace() throws Throwable {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'foo' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        for (String name : new String[] {"a", "b"}) {
+            LibraryConfiguration config = new LibraryConfiguration(name,
+                    new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+            config.setDefaultVersion("master");
+            config.setCachingConfiguration(new LibraryCachingConfiguration(30, null));
+            GlobalLibraries.get().getLibraries().add(config);
+        }
+        long originalMinFree = LibraryCachingCleanup.MIN_FREE_DISK_SPACE_MB;
+        // More than any disk has, as if something else had filled it up.
+        LibraryCachingCleanup.MIN_FREE_DISK_SPACE_MB = Long.MAX_VALUE / (1024 * 1024);
+        try {
+            WorkflowJob p = r.createProject(WorkflowJob.class);
+            p.setDefinition(new CpsFlowDefinition("@Library('a') _; foo()", true));
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            FilePath cacheA = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(b.getAction(LibrariesAction.class).getLibraries().get(0).getDirectoryName());
+            p.setDefinition(new CpsFlowDefinition("@Library('b') _; foo()", true));
+            b = r.buildAndAssertSuccess(p);
+            FilePath cacheB = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(b.getAction(LibrariesAction.class).getLibraries().get(0).getDirectoryName());
+            assertThat(new File(cacheA.getRemote()), anExistingDirectory());
+            assertThat(new File(cacheB.getRemote()), anExistingDirectory());
+        } finally {
+            LibraryCachingCleanup.MIN_FREE_DISK_SPACE_MB = originalMinFree;
+        }
     }
 
     @Test
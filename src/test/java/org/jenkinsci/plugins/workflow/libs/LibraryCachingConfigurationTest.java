@@ -235,6 +235,62 @@ public class LibraryCachingConfigurationTest {
         assertThat(new File(cache.withSuffix("-name.txt").getRemote()), not(anExistingFile()));
     }
 
+    @Test
+    public void clearCacheUpdatesIndex() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'foo' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration config = new LibraryConfiguration("library",
+                new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        config.setCachingConfiguration(new LibraryCachingConfiguration(30, null));
+        GlobalLibraries.get().getLibraries().add(config);
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("foo()", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        LibraryRecord record = b.getAction(LibrariesAction.class).getLibraries().get(0);
+        FilePath cache = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(record.getDirectoryName());
+        assertThat(LibraryCacheIndex.get().forName("library"), contains(cache));
+        assertThat(LibraryCacheIndex.get().lookup(cache), notNullValue());
+        ExtensionList.lookupSingleton(LibraryCachingConfiguration.DescriptorImpl.class).doClearCache("library", false);
+        assertThat(LibraryCacheIndex.get().forName("library"), empty());
+        assertThat(LibraryCacheIndex.get().lookup(cache), nullValue());
+        b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("Caching library library@master", b);
+        r.assertLogNotContains("is cached. Copying from cache.", b);
+    }
+
+    @Test
+    public void clearCacheRemovesStoredContent() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("vars/foo.groovy", "def call() { echo 'foo' }");
+        sampleRepo.git("add", "vars");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration config = new LibraryConfiguration("library",
+                new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        config.setDefaultVersion("master");
+        config.setImplicit(true);
+        // Retrievals recording a changelog do not use the content store.
+        config.setIncludeInChangesets(false);
+        config.setCachingConfiguration(new LibraryCachingConfiguration(30, null));
+        GlobalLibraries.get().getLibraries().add(config);
+        WorkflowJob p = r.createProject(WorkflowJob.class);
+        p.setDefinition(new CpsFlowDefinition("foo()", true));
+        r.buildAndAssertSuccess(p);
+        FilePath contentStore = LibraryCachingConfiguration.getContentStoreDir();
+        assertThat(contentStore.listDirectories(), hasSize(1));
+        FilePath content = contentStore.listDirectories().get(0);
+        assertThat(new File(content.withSuffix("-revision.txt").getRemote()), anExistingFile());
+        ExtensionList.lookupSingleton(LibraryCachingConfiguration.DescriptorImpl.class).doClearCache("library", false);
+        assertThat(new File(content.getRemote()), not(anExistingDirectory()));
+        assertThat(new File(content.withSuffix("-revision.txt").getRemote()), not(anExistingFile()));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("Caching library library@master", b);
+        r.assertLogNotContains("was already retrieved for another configuration", b);
+    }
+
     //Test similar substrings in "Versions to include" & "Versions to exclude"
     //Exclusion takes precedence
     @Issue("JENKINS-69135") //"Versions to include" feature for caching
@@ -26,6 +26,8 @@ package org.jenkinsci.plugins.workflow.libs;
 
 import com.cloudbees.hudson.plugins.folder.Folder;
 import com.google.common.collect.ImmutableMap;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyResourceLoader;
 import hudson.model.JDK;
 import hudson.model.Result;
 import hudson.plugins.git.BranchSpec;
@@ -33,9 +35,15 @@ import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.SubmoduleConfig;
 import hudson.plugins.git.UserRemoteConfig;
 import hudson.plugins.git.extensions.GitSCMExtension;
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 import jenkins.plugins.git.GitSCMSource;
 import jenkins.plugins.git.GitSampleRepoRule;
@@ -53,9 +61,12 @@ import static org.junit.Assert.*;
 import org.junit.ClassRule;
 import org.junit.Ignore;
 import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.BuildWatcher;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.LoggerRule;
+import org.jvnet.hudson.test.WithoutJenkins;
 
 @Issue("JENKINS-39450")
 public class LibraryStepTest {
@@ -64,6 +75,8 @@ public class LibraryStepTest {
     @Rule public JenkinsRule r = new JenkinsRule();
     @Rule public GitSampleRepoRule sampleRepo = new GitSampleRepoRule();
     @Rule public GitSampleRepoRule sampleRepo2 = new GitSampleRepoRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+    @Rule public LoggerRule logging = new LoggerRule();
 
     @Test public void configRoundtrip() throws Exception {
         StepConfigTester stepTester = new StepConfigTester(r);
@@ -125,6 +138,144 @@ public class LibraryStepTest {
         r.assertLogContains("using constant vs. constant", b);
     }
 
+    @Test public void staticFields() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("src/some/pkg/Counter.groovy", "package some.pkg; class Counter {public static int count; static int twice() {count * 2}}");
+        sampleRepo.git("add", "src");
+        sampleRepo.git("commit", "--message=init");
+        GlobalLibraries.get().setLibraries(Collections.singletonList(new LibraryConfiguration("stuff", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)))));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "def lib = library 'stuff@master'\n" +
+                "for (int i = 0; i < 3; i++) {lib.some.pkg.Counter.count += 2}\n" +
+                "echo(/count=${lib.some.pkg.Counter.count} twice=${lib.some.pkg.Counter.twice()}/)\n" +
+                "lib.some.pkg.no_such_class = 1\n", true));
+        WorkflowRun b = r.buildAndAssertStatus(Result.FAILURE, p);
+        r.assertLogContains("count=6 twice=12", b);
+        r.assertLogContains("MissingPropertyException: No such property: no_such_class", b);
+    }
+
+    @Test public void classesAreVerifiedOncePerLibrary() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("src/pkg/A.groovy", "package pkg; class A {static String hello() {'hello from A'}}");
+        sampleRepo.git("add", "src");
+        sampleRepo.git("commit", "--message=init");
+        sampleRepo2.init();
+        sampleRepo2.write("src/other/B.groovy", "package other; class B {}");
+        sampleRepo2.git("add", "src");
+        sampleRepo2.git("commit", "--message=init");
+        GlobalLibraries.get().setLibraries(Arrays.asList(
+            new LibraryConfiguration("a", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true))),
+            new LibraryConfiguration("b", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo2.toString(), "", "*", "", true)))));
+        logging.record(LibraryStep.class, Level.FINE).capture(100);
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "def a = library 'a@master'\n" +
+                "def b = library 'b@master'\n" +
+                "for (int i = 0; i < 3; i++) {echo a.pkg.A.hello()}\n" +
+                "try {b.pkg.A.hello(); echo 'reached through b'} catch (e) {echo(/rejected: ${e.message}/)}\n", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("hello from A", b);
+        // Having been verified for one library does not let a class be reached through the handle of another.
+        r.assertLogContains("which was not inside", b);
+        r.assertLogNotContains("reached through b", b);
+        assertEquals(1, logging.getMessages().stream().filter(m -> m.startsWith("Verified that pkg.A is inside")).count());
+    }
+
+    @Test public void classFromLaterLibraryAfterFailedLookup() throws Exception {
+        assertClassFromLaterLibraryAfterFailedLookup();
+    }
+
+    @Test public void classFromLaterLibraryAfterFailedLookupWithoutSourceIndex() throws Exception {
+        LibrarySourceIndex.ENABLED = false;
+        try {
+            assertClassFromLaterLibraryAfterFailedLookup();
+        } finally {
+            LibrarySourceIndex.ENABLED = true;
+        }
+    }
+
+    @WithoutJenkins
+    @Test public void sourceIndexRemembersMissingClasses() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        GroovyClassLoader loader = countingLoader(lookups);
+        URL dir = librarySources();
+        LibrarySourceIndex.addURL(loader, dir, loader);
+        GroovyResourceLoader index = loader.getResourceLoader();
+        assertNotNull(index.loadGroovySource("some.pkg.Present"));
+        assertNull(index.loadGroovySource("some.pkg.Missing"));
+        int count = lookups.get();
+        assertNull(index.loadGroovySource("some.pkg.Missing"));
+        assertEquals("answered from memory", count, lookups.get());
+    }
+
+    @WithoutJenkins
+    @Test public void sourceIndexIgnoresDuplicateURLs() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        GroovyClassLoader loader = countingLoader(lookups);
+        URL dir = librarySources();
+        LibrarySourceIndex.addURL(loader, dir, loader);
+        // As when a build resumes.
+        LibrarySourceIndex.addURL(loader, dir, loader);
+        assertEquals(1, loader.getURLs().length);
+        GroovyResourceLoader index = loader.getResourceLoader();
+        assertNull(index.loadGroovySource("some.pkg.Missing"));
+        int count = lookups.get();
+        assertNull(index.loadGroovySource("some.pkg.Missing"));
+        assertEquals("still answered from memory", count, lookups.get());
+        assertNotNull(index.loadGroovySource("some.pkg.Present"));
+    }
+
+    /** Creates a class loader counting lookups which reach its parent or its original resource loader. */
+    private static GroovyClassLoader countingLoader(AtomicInteger lookups) {
+        GroovyClassLoader loader = new GroovyClassLoader(new ClassLoader(null) {
+            @Override public URL getResource(String name) {
+                lookups.incrementAndGet();
+                return super.getResource(name);
+            }
+        });
+        GroovyResourceLoader original = loader.getResourceLoader();
+        loader.setResourceLoader(className -> {
+            lookups.incrementAndGet();
+            return original.loadGroovySource(className);
+        });
+        return loader;
+    }
+
+    private URL librarySources() throws Exception {
+        File src = tmp.newFolder("src");
+        File source = new File(src, "some/pkg/Present.groovy");
+        Files.createDirectories(source.getParentFile().toPath());
+        Files.write(source.toPath(), "package some.pkg; class Present {}".getBytes(StandardCharsets.UTF_8));
+        return src.toURI().toURL();
+    }
+
+    private void assertClassFromLaterLibraryAfterFailedLookup() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("src/some/pkg/Early.groovy", "package some.pkg; class Early {static String hello() {'hello from early'}}");
+        sampleRepo.git("add", "src");
+        sampleRepo.git("commit", "--message=init");
+        sampleRepo2.init();
+        sampleRepo2.write("src/some/pkg/Later.groovy", "package some.pkg; class Later {static String hello() {'hello from later'}}");
+        sampleRepo2.git("add", "src");
+        sampleRepo2.git("commit", "--message=init");
+        GlobalLibraries.get().setLibraries(Arrays.asList(
+            new LibraryConfiguration("early", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true))),
+            new LibraryConfiguration("later", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo2.toString(), "", "*", "", true)))));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "def early = library 'early@master'\n" +
+                "echo early.some.pkg.Early.hello()\n" +
+                "try {early.some.pkg.Later.hello(); echo 'found too early'} catch (e) {echo 'not found yet'}\n" +
+                "def later = library 'later@master'\n" +
+                "echo later.some.pkg.Later.hello()\n", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("hello from early", b);
+        r.assertLogContains("not found yet", b);
+        r.assertLogNotContains("found too early", b);
+        r.assertLogContains("hello from later", b);
+    }
+
     @Test public void missingProperty() throws Exception {
         sampleRepo.init();
         sampleRepo.write("src/some/pkg/MyClass.groovy", "package some.pkg; class MyClass { }");
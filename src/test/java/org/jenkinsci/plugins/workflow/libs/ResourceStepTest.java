@@ -41,6 +41,8 @@ import jenkins.plugins.git.GitSampleRepoRule;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.*;
 import org.junit.Test;
 import org.junit.ClassRule;
@@ -133,7 +135,7 @@ public class ResourceStepTest {
         modifyCacheTimestamp("stuff", "master", System.currentTimeMillis() - 60000 * 61); // 61 minutes have passed, due for a refresh
         WorkflowRun thirdBuild = r.buildAndAssertSuccess(p);
         r.assertLogContains("got fixed contents", thirdBuild);
-        r.assertLogContains("Library stuff@master is due for a refresh after 60 minutes, clearing.", thirdBuild);
+        r.assertLogContains("Library stuff@master is due for a refresh after 60 minutes, refreshing.", thirdBuild);
         r.assertLogContains("Caching library stuff@master", thirdBuild);
         r.assertLogContains("git", thirdBuild); // git is called
     }
@@ -253,6 +255,56 @@ public class ResourceStepTest {
         r.assertLogContains("Hello from foo!", run);
     }
 
+    @Test public void bundledResources() throws Exception {
+        initFixedContentLibrary();
+        GlobalLibraries.get().setLibraries(Collections.singletonList(
+            new LibraryConfiguration("stuff", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)))));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        LibraryAdder.BUNDLE_RESOURCES = true;
+        try {
+            p.setDefinition(new CpsFlowDefinition("@Library('stuff@master') import pkg.Stuff; echo(/got ${Stuff.contents(this)}/)", true));
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("got fixed contents", b);
+            LibrariesAction action = b.getAction(LibrariesAction.class);
+            FilePath libDir = new FilePath(b.getRootDir()).child("libs/" + action.getLibraries().get(0).getDirectoryName());
+            assertTrue(libDir.child(LibraryAdder.RESOURCES_BUNDLE).exists());
+            assertFalse(libDir.child("resources").exists());
+            p.setDefinition(new CpsFlowDefinition("@Library('stuff@master') _; libraryResource('pkg/../../../../secrets/master.key')", true));
+            r.assertLogContains("pkg/../../../../secrets/master.key references a file that is not contained within the library: stuff", r.buildAndAssertStatus(Result.FAILURE, p));
+        } finally {
+            LibraryAdder.BUNDLE_RESOURCES = false;
+        }
+    }
+
+    @Test public void bundledResourcesInCache() throws Exception {
+        assumeFalse(Functions.isWindows());
+        sampleRepo.init();
+        sampleRepo.write("vars/x.groovy", "def call() {echo(/got ${libraryResource 'linked/x.txt'}/)}");
+        sampleRepo.write("resources/real/x.txt", "linked contents");
+        Files.createSymbolicLink(Paths.get(sampleRepo.getRoot().getPath(), "resources", "linked"), Paths.get("real"));
+        sampleRepo.git("add", "vars", "resources");
+        sampleRepo.git("commit", "--message=init");
+        LibraryConfiguration libraryConfig = new LibraryConfiguration("stuff", new SCMSourceRetriever(new GitSCMSource(null, sampleRepo.toString(), "", "*", "", true)));
+        libraryConfig.setDefaultVersion("master");
+        libraryConfig.setImplicit(true);
+        libraryConfig.setCachingConfiguration(new LibraryCachingConfiguration(0, null));
+        GlobalLibraries.get().setLibraries(Collections.singletonList(libraryConfig));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("x()", true));
+        LibraryAdder.BUNDLE_RESOURCES = true;
+        try {
+            r.assertLogContains("got linked contents", r.buildAndAssertSuccess(p));
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("is cached. Copying from cache.", b);
+            r.assertLogContains("got linked contents", b);
+            FilePath cache = LibraryCachingConfiguration.getGlobalLibrariesCacheDir().child(b.getAction(LibrariesAction.class).getLibraries().get(0).getDirectoryName());
+            assertTrue(cache.child(LibraryAdder.RESOURCES_BUNDLE).exists());
+            assertFalse(cache.child("resources").exists());
+        } finally {
+            LibraryAdder.BUNDLE_RESOURCES = false;
+        }
+    }
+
     public void initFixedContentLibrary() throws Exception {
         sampleRepo.init();
         sampleRepo.write("src/pkg/Stuff.groovy", "package pkg; class Stuff {static def contents(script) {script.libraryResource 'pkg/file'}}");
@@ -267,6 +319,7 @@ public class ResourceStepTest {
         if (cacheDir.exists()) {
             cacheDir.deleteRecursive();
         }
+        LibraryCacheIndex.get().reload();
     }
 
     public void modifyCacheTimestamp(String name, String version, long timestamp) throws Exception {
@@ -275,6 +328,7 @@ public class ResourceStepTest {
         if (cacheDir.exists()) {
             cacheDir.touch(timestamp);
         }
+        LibraryCacheIndex.get().reload();
     }
 
 }
@@ -62,6 +62,7 @@ import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.*;
+import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
@@ -76,6 +77,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
 import static org.hamcrest.Matchers.arrayWithSize;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.matchesPattern;
 import static org.jenkinsci.plugins.workflow.libs.SCMBasedRetriever.PROHIBITED_DOUBLE_DOT;
 import org.jvnet.hudson.test.FlagRule;
@@ -89,6 +92,10 @@ public class SCMSourceRetrieverTest {
     @Rule public FlagRule<Boolean> includeSrcTest = new FlagRule<>(() -> SCMBasedRetriever.INCLUDE_SRC_TEST_IN_LIBRARIES, v -> SCMBasedRetriever.INCLUDE_SRC_TEST_IN_LIBRARIES = v);
     @Rule public LoggerRule logging = new LoggerRule().record(SCMBasedRetriever.class, Level.FINE);
 
+    @Before public void resetCircuitBreakers() {
+        SCMBasedRetriever.circuitBreakers.clear();
+    }
+
     @Issue("JENKINS-40408")
     @Test public void lease() throws Exception {
         sampleRepo.init();
@@ -105,7 +112,7 @@ public class SCMSourceRetrieverTest {
         try (WorkspaceList.Lease lease = r.jenkins.toComputer().getWorkspaceList().acquire(base)) {
             WorkflowRun b = r.buildAndAssertSuccess(p);
             r.assertLogContains("something special", b);
-            r.assertLogNotContains("Retrying after 10 seconds", b);
+            r.assertLogNotContains("Retrying after ", b);
             assertFalse(base.child("vars").exists());
             assertFalse(base.withSuffix("-scm-key.txt").exists());
             assertTrue(base.withSuffix("@2").child("vars").exists());
@@ -143,7 +150,7 @@ public class SCMSourceRetrieverTest {
             ChangeLogSet.Entry entry = iterator.next();
             assertEquals("library_commit", entry.getMsg() );
             r.assertLogContains("something even more special", b);
-            r.assertLogNotContains("Retrying after 10 seconds", b);
+            r.assertLogNotContains("Retrying after ", b);
         }
     }
 
@@ -169,7 +176,7 @@ public class SCMSourceRetrieverTest {
             WorkflowRun b = r.buildAndAssertSuccess(p);
             List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets = b.getChangeSets();
             assertEquals(0, changeSets.size());
-            r.assertLogNotContains("Retrying after 10 seconds", b);
+            r.assertLogNotContains("Retrying after ", b);
         }
     }
 
@@ -257,19 +264,67 @@ public class SCMSourceRetrieverTest {
         @Override protected void retrieve(SCMSourceCriteria criteria, SCMHeadObserver observer, SCMHeadEvent<?> event, TaskListener listener) throws IOException, InterruptedException {
             throw new IOException("not implemented");
         }
-        @TestExtension("owner") public static final class DescriptorImpl extends SCMSourceDescriptor {}
+        @TestExtension({"owner", "lightweightFallbackRecordsChangelog"}) public static final class DescriptorImpl extends SCMSourceDescriptor {}
+    }
+
+    @Test public void lightweightFallbackRecordsChangelog() throws Exception {
+        SCMSourceRetriever retriever = new SCMSourceRetriever(new NeedsOwnerSCMSource());
+        retriever.setLightweight(true);
+        GlobalLibraries.get().setLibraries(Collections.singletonList(new LibraryConfiguration("test", retriever)));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("@Library('test@abc123') import libVersion; echo(/loaded lib #${libVersion()}/)", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("loaded lib #abc123", b);
+        r.assertLogContains("Lightweight retrieval is not supported", b);
+        // The checkout it falls back to is asked for a changelog as usual.
+        r.assertLogNotContains("ignoring request to compute changelog", b);
+    }
+
+    @WithoutJenkins
+    @Test public void retryDelays() {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long base = Math.min(SCMBasedRetriever.RETRY_MAX_DELAY_SECONDS, SCMBasedRetriever.RETRY_INITIAL_DELAY_SECONDS << attempt);
+            long delay = SCMBasedRetriever.retryDelaySeconds(attempt);
+            assertThat(delay, lessThanOrEqualTo(base));
+            assertThat(delay, greaterThanOrEqualTo(base - base / 2));
+        }
     }
 
     @Test public void retry() throws Exception {
         WorkflowRun b = prepareRetryTests(new FailingSCMSource());
         r.assertLogContains("Failing 'checkout' on purpose!", b);
-        r.assertLogContains("Retrying after 10 seconds", b);
+        r.assertLogContains("Retrying after ", b);
     }
 
     @Test public void retryDuringFetch() throws Exception {
         WorkflowRun b = prepareRetryTests(new FailingSCMSourceDuringFetch());
         r.assertLogContains("Failing 'fetch' on purpose!", b);
-        r.assertLogContains("Retrying after 10 seconds", b);
+        r.assertLogContains("Retrying after ", b);
+    }
+
+    @Test public void circuitBreaker() throws Exception {
+        GlobalLibraries.get().setLibraries(Collections.singletonList(new LibraryConfiguration("failing", new SCMSourceRetriever(new FailingSCMSource()))));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("@Library('failing@master') import myecho; myecho()", true));
+        r.jenkins.setScmCheckoutRetryCount(0);
+        SCMBasedRetriever.CIRCUIT_BREAKER_FAILURES = 2;
+        try {
+            for (int i = 0; i < 2; i++) {
+                r.assertLogContains("Failing 'checkout' on purpose!", r.buildAndAssertStatus(Result.FAILURE, p));
+            }
+            WorkflowRun b = r.buildAndAssertStatus(Result.FAILURE, p);
+            r.assertLogContains("since the last 2 attempts failed", b);
+            r.assertLogNotContains("Failing 'checkout' on purpose!", b);
+            // Other versions are tracked separately.
+            WorkflowJob p2 = r.jenkins.createProject(WorkflowJob.class, "p2");
+            p2.setDefinition(new CpsFlowDefinition("@Library('failing@other') import myecho; myecho()", true));
+            r.assertLogContains("Failing 'checkout' on purpose!", r.buildAndAssertStatus(Result.FAILURE, p2));
+            SCMBasedRetriever.CIRCUIT_BREAKER_OPEN_SECONDS = 0;
+            r.assertLogContains("Failing 'checkout' on purpose!", r.buildAndAssertStatus(Result.FAILURE, p));
+        } finally {
+            SCMBasedRetriever.CIRCUIT_BREAKER_FAILURES = 0;
+            SCMBasedRetriever.CIRCUIT_BREAKER_OPEN_SECONDS = 300;
+        }
     }
 
     private WorkflowRun prepareRetryTests(SCMSource scmSource) throws Exception{
@@ -396,6 +451,39 @@ public class SCMSourceRetrieverTest {
         assertThat(entries, arrayContainingInAnyOrder("vars"));
     }
 
+    @Test public void cloneModeMirror() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("sub/path/vars/myecho.groovy", "def call() {echo 'something special'}");
+        sampleRepo.write("README.md", "Summary");
+        sampleRepo.git("add", ".");
+        sampleRepo.git("commit", "--message=init");
+        SCMSourceRetriever scm = new SCMSourceRetriever(new GitSCMSource(sampleRepo.toString()));
+        LibraryConfiguration lc = new LibraryConfiguration("echoing", scm);
+        lc.setIncludeInChangesets(false);
+        scm.setLibraryPath("sub/path/");
+        scm.setClone(true);
+        GlobalLibraries.get().setLibraries(Collections.singletonList(lc));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("@Library('echoing@master') import myecho; myecho()", true));
+        SCMBasedRetriever.MIRROR_CLONES = true;
+        try {
+            WorkflowRun b1 = r.buildAndAssertSuccess(p);
+            r.assertLogContains("something special", b1);
+            r.assertLogContains("kept on the controller", b1);
+            sampleRepo.write("sub/path/vars/myecho.groovy", "def call() {echo 'something else'}");
+            sampleRepo.git("commit", "--all", "--message=modified");
+            WorkflowRun b2 = r.buildAndAssertSuccess(p);
+            r.assertLogContains("something else", b2);
+            r.assertLogNotContains("Cloning the remote Git repository", b2);
+            assertFalse(r.jenkins.getWorkspaceFor(p).withSuffix("@libs").isDirectory());
+            File[] libDirs = new File(b2.getRootDir(), "libs").listFiles(File::isDirectory);
+            assertThat(libDirs, arrayWithSize(1));
+            assertThat(libDirs[0].list(), arrayContainingInAnyOrder("vars"));
+        } finally {
+            SCMBasedRetriever.MIRROR_CLONES = false;
+        }
+    }
+
     @Test public void cloneModeLibraryPath() throws Exception {
         sampleRepo.init();
         sampleRepo.write("sub/path/vars/myecho.groovy", "def call() {echo 'something special'}");
@@ -476,4 +564,35 @@ public class SCMSourceRetrieverTest {
         r.assertLogNotContains("Excluding src/test/ from checkout", b);
     }
 
+    @Test public void lightweightLibraryPath() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("sub/path/vars/myecho.groovy", "def call() {echo(/got ${new pkg.X().m()} and ${libraryResource 'r.txt'}/)}");
+        sampleRepo.write("sub/path/vars/myecho.txt", "Echoes.");
+        sampleRepo.write("sub/path/src/pkg/X.groovy", "package pkg; class X {def m() {'something special'}}");
+        sampleRepo.write("sub/path/src/pkg/notes.md", "irrelevant");
+        sampleRepo.write("sub/path/src/test/Y.groovy", "// irrelevant");
+        sampleRepo.write("sub/path/resources/r.txt", "a resource");
+        sampleRepo.write("sub/path/README.md", "Summary");
+        sampleRepo.git("add", "sub");
+        sampleRepo.git("commit", "--message=init");
+        SCMSourceRetriever scm = new SCMSourceRetriever(new GitSCMSource(sampleRepo.toString()));
+        LibraryConfiguration lc = new LibraryConfiguration("root_sub_path", scm);
+        scm.setLibraryPath("sub/path/");
+        scm.setLightweight(true);
+        GlobalLibraries.get().setLibraries(Collections.singletonList(lc));
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("@Library('root_sub_path@master') import myecho; myecho()", true));
+        WorkflowRun b = r.buildAndAssertSuccess(p);
+        r.assertLogContains("got something special and a resource", b);
+        r.assertLogContains("without a checkout", b);
+        r.assertLogContains("Excluding src/test/ from checkout", b);
+        assertFalse(r.jenkins.getWorkspaceFor(p).withSuffix("@libs").isDirectory());
+        File[] libDirs = new File(b.getRootDir(), "libs").listFiles(File::isDirectory);
+        assertThat(libDirs, arrayWithSize(1));
+        assertThat(libDirs[0].list(), arrayContainingInAnyOrder("src", "vars", "resources"));
+        assertThat(new File(libDirs[0], "src").list(), arrayContainingInAnyOrder("pkg"));
+        assertThat(new File(libDirs[0], "src/pkg").list(), arrayContainingInAnyOrder("X.groovy"));
+        assertThat(new File(libDirs[0], "vars").list(), arrayContainingInAnyOrder("myecho.groovy", "myecho.txt"));
+    }
+
 }